@@ -0,0 +1,170 @@
+/*
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.akalaszi.morphlineaddons;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+
+/**
+ * Finds all occurrences of a set of non-empty keywords in a single pass over
+ * the text, whatever the number of keywords. Immutable, thread-safe.
+ */
+final class AhoCorasick {
+	private static final int[] NONE = new int[0];
+	private static final int ROOT_TABLE_SIZE = 128;
+
+	/** the chars leaving each state, sorted, and the states they lead to */
+	private final char[][] labels;
+	private final int[][] targets;
+	/** the transitions of the root for ASCII chars, -1 where there is none */
+	private final int[] root = new int[ROOT_TABLE_SIZE];
+	private final int[] failure;
+	private final int[][] outputs; // keyword indexes ending in the state
+	private final int[] lengths;
+
+	/**
+	 * Reports a keyword ending at the given index of the text, exclusive.
+	 * Returns false to stop the search.
+	 */
+	interface HitHandler {
+		boolean onHit(int keyword, int end);
+	}
+
+	AhoCorasick(List<String> keywords) {
+		final List<List<Integer>> out = new ArrayList<>();
+		final List<TreeMap<Character, Integer>> trie = new ArrayList<>();
+		out.add(new ArrayList<>());
+		trie.add(new TreeMap<>());
+		this.lengths = new int[keywords.size()];
+		for (int k = 0; k < keywords.size(); k++) {
+			final String keyword = keywords.get(k);
+			if (keyword.isEmpty()) {
+				throw new IllegalArgumentException("Empty keyword");
+			}
+			lengths[k] = keyword.length();
+			int state = 0;
+			for (int i = 0; i < keyword.length(); i++) {
+				Integer next = trie.get(state).get(keyword.charAt(i));
+				if (next == null) {
+					next = out.size();
+					out.add(new ArrayList<>());
+					trie.add(new TreeMap<>());
+					trie.get(state).put(keyword.charAt(i), next);
+				}
+				state = next;
+			}
+			out.get(state).add(k);
+		}
+
+		this.labels = new char[trie.size()][];
+		this.targets = new int[trie.size()][];
+		for (int state = 0; state < trie.size(); state++) {
+			final Map<Character, Integer> children = trie.get(state);
+			labels[state] = new char[children.size()];
+			targets[state] = new int[children.size()];
+			int i = 0;
+			for (Map.Entry<Character, Integer> child : children.entrySet()) {
+				labels[state][i] = child.getKey();
+				targets[state][i] = child.getValue();
+				i++;
+			}
+		}
+		Arrays.fill(root, -1);
+		for (int i = 0; i < labels[0].length && labels[0][i] < ROOT_TABLE_SIZE; i++) {
+			root[labels[0][i]] = targets[0][i];
+		}
+
+		this.failure = new int[trie.size()];
+		this.outputs = new int[trie.size()][];
+		final Queue<Integer> queue = new ArrayDeque<>();
+		outputs[0] = NONE;
+		for (int child : targets[0]) {
+			failure[child] = 0;
+			queue.add(child);
+		}
+		while (!queue.isEmpty()) {
+			final int state = queue.remove();
+			List<Integer> own = out.get(state);
+			int[] inherited = outputs[failure[state]];
+			int[] merged = Arrays.copyOf(toArray(own), own.size() + inherited.length);
+			System.arraycopy(inherited, 0, merged, own.size(), inherited.length);
+			outputs[state] = merged;
+			for (int i = 0; i < labels[state].length; i++) {
+				final char c = labels[state][i];
+				int f = failure[state];
+				int next = next(f, c);
+				while (next < 0 && f != 0) {
+					f = failure[f];
+					next = next(f, c);
+				}
+				failure[targets[state][i]] = next < 0 ? 0 : next;
+				queue.add(targets[state][i]);
+			}
+		}
+	}
+
+	int length(int keyword) {
+		return lengths[keyword];
+	}
+
+	/**
+	 * Keywords ending at the same index are reported longest first.
+	 */
+	void search(CharSequence text, HitHandler handler) {
+		int state = 0;
+		for (int i = 0; i < text.length(); i++) {
+			final char c = text.charAt(i);
+			int next = next(state, c);
+			while (next < 0 && state != 0) {
+				state = failure[state];
+				next = next(state, c);
+			}
+			state = next < 0 ? 0 : next;
+			for (int k : outputs[state]) {
+				if (!handler.onHit(k, i + 1)) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the state the char leads to from the state, -1 if none
+	 */
+	private int next(int state, char c) {
+		if (state == 0 && c < ROOT_TABLE_SIZE) {
+			return root[c];
+		}
+		final int i = Arrays.binarySearch(labels[state], c);
+		return i < 0 ? -1 : targets[state][i];
+	}
+
+	private static int[] toArray(List<Integer> list) {
+		if (list.isEmpty()) {
+			return NONE;
+		}
+		int[] array = new int[list.size()];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = list.get(i);
+		}
+		return array;
+	}
+
+}
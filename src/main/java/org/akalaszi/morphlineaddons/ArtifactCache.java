@@ -0,0 +1,119 @@
+/*
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.akalaszi.morphlineaddons;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+
+import org.kitesdk.morphline.api.MorphlineContext;
+import org.kitesdk.morphline.api.MorphlineRuntimeException;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Immutable compiled artifacts (regexes, CSS selectors, JSON paths) shared
+ * by all the commands of a MorphlineContext, so the same pattern is compiled
+ * and retained only once however many morphlines use it. The cache holds at
+ * most MAX_SIZE artifacts, the least recently used ones are evicted first,
+ * the size can be changed with the
+ * org.akalaszi.morphlineaddons.ArtifactCache.maxSize system property. The
+ * cache goes away with its context.
+ *
+ * Hits, misses and evictions are counted in the artifactCache.hits,
+ * artifactCache.misses and artifactCache.evictions meters of the context.
+ *
+ * Thread-safe.
+ */
+final class ArtifactCache {
+	private static final long MAX_SIZE = Long.getLong(ArtifactCache.class.getName() + ".maxSize", 10000);
+	private static final Map<MorphlineContext, ArtifactCache> CACHES = new WeakHashMap<>(); // guarded by itself
+	private static final ArtifactCache NO_CACHE = new ArtifactCache(null);
+
+	private final Cache<Object, Object> cache;
+	private final Meter hits;
+	private final Meter misses;
+
+	private ArtifactCache(MetricRegistry metrics) {
+		if (metrics == null) {
+			this.cache = null;
+			this.hits = null;
+			this.misses = null;
+			return;
+		}
+		this.hits = metrics.meter(MetricRegistry.name("artifactCache", "hits"));
+		this.misses = metrics.meter(MetricRegistry.name("artifactCache", "misses"));
+		final Meter evictions = metrics.meter(MetricRegistry.name("artifactCache", "evictions"));
+		this.cache = CacheBuilder.newBuilder().maximumSize(MAX_SIZE).removalListener(n -> {
+			if (n.wasEvicted()) {
+				evictions.mark();
+			}
+		}).build();
+	}
+
+	static ArtifactCache of(MorphlineContext context) {
+		synchronized (CACHES) {
+			ArtifactCache cache = CACHES.get(context);
+			if (cache == null) {
+				cache = new ArtifactCache(context.getMetricRegistry());
+				CACHES.put(context, cache);
+			}
+			return cache;
+		}
+	}
+
+	/**
+	 * Compiles every time, for code running outside of a morphline.
+	 */
+	static ArtifactCache noCache() {
+		return NO_CACHE;
+	}
+
+	/**
+	 * Returns the artifact of the given kind compiled from the source,
+	 * compiling it if needed. The source must be immutable, e.g. a String or
+	 * a List of Strings. Exceptions of the compiler are passed on as they
+	 * are.
+	 */
+	@SuppressWarnings("unchecked")
+	<T> T get(String kind, Object source, Supplier<T> compiler) {
+		if (cache == null) {
+			return compiler.get();
+		}
+		final boolean[] compiled = new boolean[1];
+		try {
+			final T artifact = (T) cache.get(Arrays.asList(kind, source), () -> {
+				compiled[0] = true;
+				return compiler.get();
+			});
+			(compiled[0] ? misses : hits).mark();
+			return artifact;
+		} catch (UncheckedExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw e;
+		} catch (ExecutionException e) {
+			throw new MorphlineRuntimeException(e.getCause());
+		}
+	}
+
+}
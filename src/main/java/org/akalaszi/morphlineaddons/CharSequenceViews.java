@@ -0,0 +1,278 @@
+/*
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.akalaszi.morphlineaddons;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.kitesdk.morphline.api.MorphlineRuntimeException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Counter;
+
+/**
+ * Presents record values to the regexes as CharSequences, without creating
+ * a String for byte[] and InputStream values (e.g. _attachment_body):
+ * <ul>
+ * <li>byte[] in a single byte charset, or ASCII only bytes in an ASCII
+ * compatible one, are read in place;</li>
+ * <li>other byte[] are decoded into a buffer reused by the thread;</li>
+ * <li>an InputStream is read into a reused buffer, grown as needed up to
+ * maxStreamBytes, and reset, so the next commands can read it again. A stream
+ * longer than maxStreamBytes does not match: it is counted in the tooLong
+ * counter and logged, instead of matching a part of it. Streams not
+ * supporting mark() are wrapped by {@link #markable(Object)} first;</li>
+ * <li>anything else is matched as its toString().</li>
+ * </ul>
+ *
+ * A view is only valid until the next call on the same thread, or until
+ * {@link #release()}, which drops the buffers of the thread if a large value
+ * has grown them past MAX_REUSED_BYTES. Thread-safe.
+ */
+final class CharSequenceViews {
+	private static final Logger LOGGER = LoggerFactory.getLogger(CharSequenceViews.class);
+
+	private final Charset charset;
+	private final boolean singleByte;
+	private final boolean asciiCompatible;
+	private static final int INITIAL_STREAM_BUFFER = 8192;
+	private static final int MAX_REUSED_BYTES = 1 << 20;
+
+	private final int maxStreamBytes;
+	private final Counter tooLong;
+	private final ThreadLocal<Buffers> buffers;
+
+	CharSequenceViews(Charset charset, int maxStreamBytes) {
+		this(charset, maxStreamBytes, new Counter());
+	}
+
+	CharSequenceViews(Charset charset, int maxStreamBytes, Counter tooLong) {
+		this.charset = charset;
+		this.singleByte = charset.equals(StandardCharsets.ISO_8859_1);
+		this.asciiCompatible = charset.equals(StandardCharsets.UTF_8) || charset.equals(StandardCharsets.US_ASCII)
+				|| singleByte;
+		this.maxStreamBytes = maxStreamBytes;
+		this.tooLong = tooLong;
+		this.buffers = ThreadLocal.withInitial(Buffers::new);
+	}
+
+	/**
+	 * The value to put in the record in place of the given one before it is
+	 * viewed: a BufferedInputStream over an InputStream not supporting mark(),
+	 * so the next commands can still read what the view read, otherwise the
+	 * value itself.
+	 */
+	static Object markable(Object value) {
+		if (value instanceof InputStream && !((InputStream) value).markSupported()) {
+			return new BufferedInputStream((InputStream) value);
+		}
+		return value;
+	}
+
+	/**
+	 * Ends the last view of the calling thread. Buffers grown past
+	 * MAX_REUSED_BYTES are dropped, so a thread does not keep the buffers of
+	 * its largest value alive.
+	 */
+	void release() {
+		if (buffers.get().retainedBytes() > MAX_REUSED_BYTES) {
+			buffers.remove();
+		}
+	}
+
+	/**
+	 * The bytes the buffers of the calling thread hold on to, for tests.
+	 */
+	long retainedBytes() {
+		return buffers.get().retainedBytes();
+	}
+
+	/**
+	 * Returns null if the value cannot be matched.
+	 */
+	CharSequence view(Object value) {
+		if (value == null) {
+			return null;
+		}
+		if (value instanceof CharSequence) {
+			return (CharSequence) value;
+		}
+		if (value instanceof byte[]) {
+			final byte[] bytes = (byte[]) value;
+			return view(bytes, bytes.length);
+		}
+		if (value instanceof InputStream) {
+			return view((InputStream) value);
+		}
+		return value.toString();
+	}
+
+	private CharSequence view(InputStream in) {
+		if (!in.markSupported()) {
+			throw new MorphlineRuntimeException("InputStream does not support mark(), see markable(): " + in);
+		}
+		final Buffers b = buffers.get();
+		final int limit = maxStreamBytes + 1; // one more byte tells a stream that is too long
+		byte[] bytes = b.bytes(Math.min(INITIAL_STREAM_BUFFER, limit));
+		int length = 0;
+		in.mark(limit);
+		try {
+			try {
+				int n;
+				while (length < limit) {
+					if (length == bytes.length) {
+						bytes = b.bytes(Math.min(2 * bytes.length, limit));
+					}
+					if ((n = in.read(bytes, length, bytes.length - length)) < 0) {
+						break;
+					}
+					length += n;
+				}
+			} finally {
+				in.reset();
+			}
+		} catch (IOException e) {
+			throw new MorphlineRuntimeException(e);
+		}
+		if (length > maxStreamBytes) {
+			tooLong.inc();
+			LOGGER.warn("InputStream {} is longer than {} bytes, not matched", in, maxStreamBytes);
+			return null;
+		}
+		return view(bytes, length);
+	}
+
+	private CharSequence view(byte[] bytes, int length) {
+		if (singleByte || (asciiCompatible && isAscii(bytes, length))) {
+			return new Latin1CharSequence(bytes, 0, length);
+		}
+		return buffers.get().decode(charset, bytes, length);
+	}
+
+	private static boolean isAscii(byte[] bytes, int length) {
+		for (int i = 0; i < length; i++) {
+			if (bytes[i] < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Bytes read as ISO-8859-1 characters, which ASCII is a subset of.
+	 */
+	private static final class Latin1CharSequence implements CharSequence {
+		private final byte[] bytes;
+		private final int offset;
+		private final int length;
+
+		Latin1CharSequence(byte[] bytes, int offset, int length) {
+			this.bytes = bytes;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		@Override
+		public int length() {
+			return length;
+		}
+
+		@Override
+		public char charAt(int index) {
+			if (index < 0 || index >= length) {
+				throw new IndexOutOfBoundsException("index " + index + ", length " + length);
+			}
+			return (char) (bytes[offset + index] & 0xFF);
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			if (start < 0 || end > length || start > end) {
+				throw new IndexOutOfBoundsException("start " + start + ", end " + end + ", length " + length);
+			}
+			return new Latin1CharSequence(bytes, offset + start, end - start);
+		}
+
+		@Override
+		public String toString() {
+			return new String(bytes, offset, length, StandardCharsets.ISO_8859_1);
+		}
+	}
+
+	/**
+	 * The buffers of a thread, grown on demand.
+	 */
+	private static final class Buffers {
+		private byte[] bytes = new byte[0];
+		private CharBuffer chars = CharBuffer.allocate(0);
+		private CharsetDecoder decoder;
+
+		long retainedBytes() {
+			return bytes.length + 2L * chars.capacity();
+		}
+
+		/**
+		 * Grows the buffer to at least size bytes, keeping its content.
+		 */
+		byte[] bytes(int size) {
+			if (bytes.length < size) {
+				bytes = Arrays.copyOf(bytes, size);
+			}
+			return bytes;
+		}
+
+		/**
+		 * Malformed input is replaced, like new String(bytes, charset) does.
+		 */
+		CharBuffer decode(Charset charset, byte[] input, int length) {
+			if (decoder == null || !decoder.charset().equals(charset)) {
+				decoder = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+						.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			}
+			final int capacity = (int) Math.ceil(length * (double) decoder.maxCharsPerByte());
+			if (chars.capacity() < capacity) {
+				chars = CharBuffer.allocate(capacity);
+			}
+			chars.clear();
+			decoder.reset();
+			try {
+				CoderResult result = decoder.decode(ByteBuffer.wrap(input, 0, length), chars, true);
+				if (!result.isUnderflow()) {
+					result.throwException();
+				}
+				result = decoder.flush(chars);
+				if (!result.isUnderflow()) {
+					result.throwException();
+				}
+			} catch (CharacterCodingException e) {
+				throw new MorphlineRuntimeException(e);
+			}
+			chars.flip();
+			return chars;
+		}
+	}
+
+}
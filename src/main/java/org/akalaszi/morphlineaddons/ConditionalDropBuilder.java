@@ -16,9 +16,6 @@ package org.akalaszi.morphlineaddons;
 
 import java.util.Collection;
 import java.util.Collections;
-import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
 
 import org.kitesdk.morphline.api.Command;
@@ -28,11 +25,8 @@ import org.kitesdk.morphline.api.MorphlineRuntimeException;
 import org.kitesdk.morphline.api.Record;
 import org.kitesdk.morphline.base.AbstractCommand;
 import org.kitesdk.morphline.base.Fields;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 import com.typesafe.config.Config;
-import com.typesafe.config.ConfigValue;
 
 /**
  * Breaks the execution flow, when all of the given fields matches the provided
@@ -40,8 +34,6 @@ import com.typesafe.config.ConfigValue;
  * matches, the field matches.
  */
 public final class ConditionalDropBuilder implements CommandBuilder {
-	private static final Logger LOGGER = LoggerFactory.getLogger(ConditionalDropBuilder.class);
-
 	@Override
 	public Collection<String> getNames() {
 		return Collections.singletonList("conditionalDrop");
@@ -53,35 +45,20 @@ public final class ConditionalDropBuilder implements CommandBuilder {
 	}
 
 	private static final class DropRecord extends AbstractCommand {
-		private Set<Map.Entry<String, ConfigValue>> entries;
+		private static final Set<String> FIRST_VALUE_ONLY = Collections.singleton(Fields.ATTACHMENT_BODY);
+		private final FieldRegexRules rules;
 
 		public DropRecord(CommandBuilder builder, Config config, Command parent, Command child,
 				MorphlineContext context) {
 			super(builder, config, parent, child, context);
-			entries = config.entrySet();
+			rules = FieldRegexRules.compile(config, FIRST_VALUE_ONLY, context, "conditionalDrop");
 		}
 
 		@Override
 		protected boolean doProcess(Record record) {
 
 			try {
-				int matchCount = 0;
-
-				for (Entry<String, ConfigValue> e : entries) {
-					final String key = e.getKey();
-					final String regexp = dropQuotes(e.getValue().render());
-
-					if (Fields.ATTACHMENT_BODY.equals(key)) {
-						if (firstValueMatches(record, Fields.ATTACHMENT_BODY, regexp)) {
-							matchCount++;
-						}
-					} else if (anyValueMatches(record, key, regexp)) {
-						matchCount++;
-					}
-
-				}
-
-				if (matchCount == entries.size()) {
+				if (rules.allMatch(record)) {
 					return true;
 				}
 
@@ -92,31 +69,6 @@ public final class ConditionalDropBuilder implements CommandBuilder {
 
 		}
 
-		private static boolean matches(Object object, String regexp) {
-			if (object == null) {
-				return false;
-			}
-
-			final String string = object.toString();
-			final boolean matches = string.matches(regexp);
-			LOGGER.debug("regex: >{}< value: >{}< {}", regexp, string, matches);
-			return matches;
-		}
-
-		private static boolean firstValueMatches(Record record, String key, String regexp) {
-			return matches(record.getFirstValue(key), regexp);
-		}
-
-		private static boolean anyValueMatches(Record record, String key, String regexp) {
-			List<?> list = record.get(key);
-			for (Object object : list) {
-				if (matches(object, regexp)) {
-					return true;
-				}
-			}
-			return false;
-		}
-
 	}
 
 	static String dropQuotes(final String render) {
@@ -16,9 +16,6 @@ package org.akalaszi.morphlineaddons;
 
 import java.util.Collection;
 import java.util.Collections;
-import java.util.List;
-import java.util.Map;
-import java.util.Set;
 
 import org.kitesdk.morphline.api.Command;
 import org.kitesdk.morphline.api.CommandBuilder;
@@ -27,7 +24,6 @@ import org.kitesdk.morphline.api.Record;
 import org.kitesdk.morphline.base.AbstractCommand;
 
 import com.typesafe.config.Config;
-import com.typesafe.config.ConfigValue;
 
 public class ContainsRegexBuilder implements CommandBuilder {
 
@@ -43,33 +39,18 @@ public class ContainsRegexBuilder implements CommandBuilder {
 
 	private static final class ContainsRegex extends AbstractCommand {
 
-		private Set<Map.Entry<String, ConfigValue>> entries;
+		private final FieldRegexRules rules;
 
 		public ContainsRegex(CommandBuilder builder, Config config, Command parent, Command child,
 				MorphlineContext context) {
 			super(builder, config, parent, child, context);
-			this.entries = config.entrySet();
+			this.rules = FieldRegexRules.compile(config, Collections.<String>emptySet(), context, "containsRegex");
 		}
 
 		@Override
 		protected boolean doProcess(Record record) {
-			for (Map.Entry<String, ConfigValue> entry : entries) {
-				String fieldName = entry.getKey();
-				String regexString = ConditionalDropBuilder.dropQuotes(entry.getValue().render());
-
-				List<?> recordValues = record.get(fieldName);
-				
-				boolean found = false;
-				for (Object value : recordValues) {
-					if (value != null && value.toString().matches(regexString)) {
-						found = true;
-						break;
-					}
-				}
-
-				if (!found) {
-					return false;
-				}
+			if (!rules.allMatch(record)) {
+				return false;
 			}
 			return super.doProcess(record);
 		}
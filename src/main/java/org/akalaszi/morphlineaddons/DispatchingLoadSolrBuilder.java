@@ -16,11 +16,21 @@ package org.akalaszi.morphlineaddons;
 
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
 
 import org.kitesdk.morphline.api.Command;
 import org.kitesdk.morphline.api.CommandBuilder;
+import org.kitesdk.morphline.api.MorphlineCompilationException;
 import org.kitesdk.morphline.api.MorphlineContext;
 import org.kitesdk.morphline.api.Record;
 import org.kitesdk.morphline.base.AbstractCommand;
@@ -29,11 +39,24 @@ import org.kitesdk.morphline.solr.SolrIndexer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.typesafe.config.Config;
 
 public final class DispatchingLoadSolrBuilder implements CommandBuilder {
 	private static final Logger LOGGER = LoggerFactory.getLogger(DispatchingLoadSolrBuilder.class);
 	private static final String TARGET_COLLECTION_PROPERTY_NAME = "targetCollection";
+	private static final Set<String> EXCLUDED_FIELDS = Collections.singleton(TARGET_COLLECTION_PROPERTY_NAME);
+	private static final String MAX_OPEN_COLLECTIONS = "maxOpenCollections";
+	private static final String IDLE_TIMEOUT_MILLIS = "idleTimeoutMillis";
+	private static final String ASYNC_WRITER_THREADS = "asyncWriterThreads";
+	private static final String WRITER_PER_COLLECTION = "writerPerCollection";
+	private static final long WRITER_KEEP_ALIVE_SECONDS = 60;
+	private static final String LIFECYCLE_THREADS = "lifecycleThreads";
+	private static final String LIFECYCLE_TIMEOUT_MILLIS = "lifecycleTimeoutMillis";
+	private static final String PREWARM_COLLECTIONS = "prewarmCollections";
+	private static final String PREWARM_COLLECTION_PATTERN = "prewarmCollectionPattern";
+	private static final String SOLR_LOCATOR = "solrLocator";
+	private static final String COLLECTION = "collection";
 
 	@Override
 	public Collection<String> getNames() {
@@ -46,11 +69,100 @@ public final class DispatchingLoadSolrBuilder implements CommandBuilder {
 	}
 
 	private static final class DispatchingLoadSolr extends AbstractCommand {
-		private final ThreadLocal<Map<String, SolrIndexer>> threadLocal = ThreadLocal.withInitial(HashMap::new);
-		
+		private final SolrIndexerPool pool;
+		private final Config indexerConfig;
+		private final ExecutorService asyncExecutor;
+		private final boolean writerPerCollection;
+		private final ExecutorService lifecycleExecutor;
+		private final long lifecycleTimeoutMillis;
+
 		public DispatchingLoadSolr(CommandBuilder builder, Config config, Command parent, Command child,
 				MorphlineContext context) {
 			super(builder, config, parent, child, context);
+			final int maxOpenCollections = getConfigs().getInt(config, MAX_OPEN_COLLECTIONS, 100);
+			final long idleTimeoutMillis = getConfigs().getLong(config, IDLE_TIMEOUT_MILLIS, 0);
+			final int asyncWriterThreads = getConfigs().getInt(config, ASYNC_WRITER_THREADS, 0);
+			this.writerPerCollection = getConfigs().getBoolean(config, WRITER_PER_COLLECTION, false);
+			final int lifecycleThreads = getConfigs().getInt(config, LIFECYCLE_THREADS, 8);
+			this.lifecycleTimeoutMillis = getConfigs().getLong(config, LIFECYCLE_TIMEOUT_MILLIS, 0);
+			final List<String> prewarmCollections = getConfigs().getStringList(config, PREWARM_COLLECTIONS,
+					Collections.<String>emptyList());
+			final String prewarmPattern = getConfigs().getString(config, PREWARM_COLLECTION_PATTERN, null);
+			if (maxOpenCollections < 1) {
+				throw new MorphlineCompilationException(MAX_OPEN_COLLECTIONS + " must be at least 1", config);
+			}
+			if (lifecycleThreads < 1) {
+				throw new MorphlineCompilationException(LIFECYCLE_THREADS + " must be at least 1", config);
+			}
+			if (writerPerCollection && asyncWriterThreads > 0) {
+				throw new MorphlineCompilationException(
+						WRITER_PER_COLLECTION + " and " + ASYNC_WRITER_THREADS + " are mutually exclusive", config);
+			}
+			// the SolrIndexer validates its config, it must not see our own parameters
+			this.indexerConfig = config.withoutPath(MAX_OPEN_COLLECTIONS).withoutPath(IDLE_TIMEOUT_MILLIS)
+					.withoutPath(ASYNC_WRITER_THREADS).withoutPath(WRITER_PER_COLLECTION).withoutPath(LIFECYCLE_THREADS)
+					.withoutPath(LIFECYCLE_TIMEOUT_MILLIS).withoutPath(PREWARM_COLLECTIONS)
+					.withoutPath(PREWARM_COLLECTION_PATTERN);
+			this.lifecycleExecutor = Executors.newFixedThreadPool(lifecycleThreads,
+					new ThreadFactoryBuilder().setNameFormat("solr-lifecycle-%d").setDaemon(true).build());
+			this.asyncExecutor = asyncWriterThreads <= 0 ? null
+					: Executors.newFixedThreadPool(asyncWriterThreads,
+							new ThreadFactoryBuilder().setNameFormat("solr-writer-%d").setDaemon(true).build());
+			this.pool = new SolrIndexerPool(this::createSolrIndexer, maxOpenCollections, idleTimeoutMillis);
+			if (!prewarmCollections.isEmpty() || prewarmPattern != null) {
+				prewarm(config, prewarmCollections, prewarmPattern, maxOpenCollections);
+			}
+		}
+
+		/**
+		 * Opens the given collections, and the ones of the cluster matching the
+		 * pattern, and checks that they have the schema of the template
+		 * collection of the solrLocator. Anything opened so far is shut down if
+		 * one of them fails.
+		 */
+		private void prewarm(Config config, List<String> collections, String pattern, int maxOpenCollections) {
+			final Config locatorConfig = indexerConfig.getConfig(SOLR_LOCATOR);
+			final String templateCollection = locatorConfig.hasPath(COLLECTION) ? locatorConfig.getString(COLLECTION) : null;
+			if (templateCollection == null) {
+				throw new MorphlineCompilationException(
+						SOLR_LOCATOR + "." + COLLECTION + " must be given to pre-warm collections", config);
+			}
+			final SolrIndexer template = new SolrIndexer(indexerConfig, getContext(), templateCollection);
+			try {
+				final Set<String> targets = new LinkedHashSet<>(collections);
+				if (pattern != null) {
+					final Pattern regex = Pattern.compile(pattern);
+					for (String collection : template.listCollections()) {
+						if (!collection.equals(templateCollection) && regex.matcher(collection).matches()) {
+							targets.add(collection);
+						}
+					}
+				}
+				if (targets.size() > maxOpenCollections) {
+					LOGGER.warn("pre-warming {} collections, more than {}: {}, the least recently used ones will be closed",
+							targets.size(), MAX_OPEN_COLLECTIONS, maxOpenCollections);
+				}
+				for (String collection : targets) {
+					LOGGER.info("pre-warming collection {} ", collection);
+					pool.obtain(collection).validate(template);
+				}
+			} catch (RuntimeException e) {
+				pool.forEach((k, v) -> {
+					try {
+						v.shutdown();
+					} catch (RuntimeException ex) {
+						e.addSuppressed(ex);
+					}
+				});
+				pool.clear();
+				lifecycleExecutor.shutdown();
+				if (asyncExecutor != null) {
+					asyncExecutor.shutdown();
+				}
+				throw new MorphlineCompilationException("Pre-warming collections failed", config, e);
+			} finally {
+				template.shutdown();
+			}
 		}
 
 		@Override
@@ -60,63 +172,66 @@ public final class DispatchingLoadSolrBuilder implements CommandBuilder {
 			if (targetCollection == null) {
 				LOGGER.warn("Property targetCollection has not been defined, omitting this record: {}", record);
 			} else {
-				final SolrIndexer loader = obtainSolrIndexer(targetCollection);
 				LOGGER.debug("Sending to collection: {} Record: {} ", targetCollection, record);
-				Record r = record.copy();
-				r.removeAll(TARGET_COLLECTION_PROPERTY_NAME);
-				loader.sendToSolr(r);
+				pool.send(targetCollection, record, EXCLUDED_FIELDS);
 			}
 
 			return super.doProcess(record);
 		}
 
-		private synchronized SolrIndexer obtainSolrIndexer(String targetCollection) {
-			final Map<String, SolrIndexer> localMap = localMap();
-			if (localMap.containsKey(targetCollection)) {
-				return localMap.get(targetCollection);
-			}
-			localMap.forEach((k, v) -> {
-				LOGGER.info("commit & shutdown for {} ", k);
-				v.commitTransaction(); 
-				v.shutdown();
-			});
-			localMap.clear();
-			
-			SolrIndexer loader = new SolrIndexer(super.getConfig(), super.getContext(), targetCollection);
-			loader.beginTransaction();
-			localMap.put(targetCollection, loader);
-			return loader;
+		private SolrIndexer createSolrIndexer(String targetCollection) {
+			LOGGER.info("opening collection {} ", targetCollection);
+			final Executor executor = writerPerCollection ? newCollectionWriter(targetCollection) : asyncExecutor;
+			return new SolrIndexer(indexerConfig, super.getContext(), targetCollection, executor);
+		}
+
+		/**
+		 * The single thread owning the Solr client and batch of the
+		 * collection. It stops when idle, so an evicted collection leaves
+		 * nothing behind.
+		 */
+		private static Executor newCollectionWriter(String targetCollection) {
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, WRITER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<>(), new ThreadFactoryBuilder()
+							.setNameFormat("solr-writer-" + targetCollection.replace("%", "%%")).setDaemon(true).build());
+			executor.allowCoreThreadTimeOut(true);
+			return executor;
 		}
 
-		private Map<String, SolrIndexer> localMap() {
-			return threadLocal.get();
+		private void forEachCollection(String name, Consumer<SolrIndexer> operation) {
+			pool.forEachInParallel(name, operation, lifecycleExecutor, lifecycleTimeoutMillis);
 		}
 
 		@Override
 		protected void doNotify(Record notification) {
 //			LOGGER.info("----- doNotify Threadname: {}", Thread.currentThread().getName());
 
+			// the collections are shared: a commit or rollback covers the records
+			// of all threads, not only those of the notifying one
 			for (Object event : Notifications.getLifecycleEvents(notification)) {
 			
 				if ( Notifications.LifecycleEvent.COMMIT_TRANSACTION.equals(event)) {
-					localMap().forEach((k, v) -> { 
-						LOGGER.debug("COMMIT_TRANSACTION for {} ", k);
-						v.commitTransaction(); 
-						});
+					// let the asynchronous writers send their last batches in parallel
+					pool.forEach((k, v) -> v.flushAsync());
+					forEachCollection("COMMIT_TRANSACTION", SolrIndexer::commitTransaction);
+					pool.throwFailures();
 				} 
 				
 				if (event == Notifications.LifecycleEvent.ROLLBACK_TRANSACTION) {
-					localMap().forEach((k, v) -> {
-						LOGGER.debug("ROLLBACK_TRANSACTION for {} ", k);
-						v.rollbackTransaction();
-						});
+					forEachCollection("ROLLBACK_TRANSACTION", SolrIndexer::rollbackTransaction);
 				} 
 				
 				if (event == Notifications.LifecycleEvent.SHUTDOWN) {
-					localMap().forEach((k, v) -> {
-						LOGGER.debug("SHUTDOWN_TRANSACTION for {} ", k);
-						v.shutdown();
-					});
+					pool.forEach((k, v) -> v.flushAsync());
+					try {
+						forEachCollection("SHUTDOWN", SolrIndexer::shutdown);
+					} finally {
+						pool.clear();
+						lifecycleExecutor.shutdown();
+						if (asyncExecutor != null) {
+							asyncExecutor.shutdown();
+						}
+					}
 				}
 				
 			}
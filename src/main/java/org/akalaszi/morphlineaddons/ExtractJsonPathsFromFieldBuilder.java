@@ -14,10 +14,14 @@
  */
 package org.akalaszi.morphlineaddons;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -29,12 +33,18 @@ import org.kitesdk.morphline.api.MorphlineRuntimeException;
 import org.kitesdk.morphline.api.Record;
 import org.kitesdk.morphline.base.AbstractCommand;
 import org.kitesdk.morphline.base.Configs;
-
+import org.kitesdk.morphline.base.Fields;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonStreamContext;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.util.JsonParserDelegate;
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Preconditions;
-import com.google.common.collect.ArrayListMultimap;
-import com.google.common.collect.ListMultimap;
+import com.jayway.jsonpath.InvalidPathException;
+import com.jayway.jsonpath.JsonPath;
 import com.typesafe.config.Config;
 
 /**
@@ -67,186 +77,174 @@ public final class ExtractJsonPathsFromFieldBuilder implements CommandBuilder {
 	}
 
 	private static final class ExtractJsonPathsFromField extends AbstractCommand {
-
-		private final boolean flatten;
-		private final Map<String, Collection<String>> stepMap;
+		private static final String TREE = "tree";
+		private static final String STREAMING = "streaming";
+		private static final String JSON_PATH = "jsonPath";
+
+		private final JsonPaths jsonPaths;
+		private final JsonPathExpressions jsonPathExpressions;
+		private final boolean streaming;
+		private final int maxDepth;
 		private final String sourceStringField;
-
-		private static final String ARRAY_TOKEN = "[]";
+		private final Charset charset;
 
 		public ExtractJsonPathsFromField(CommandBuilder builder, Config config, Command parent, Command child,
 				MorphlineContext context) {
 			super(builder, config, parent, child, context);
-			ListMultimap<String, String> stepMultiMap = ArrayListMultimap.create();
-			this.flatten = getConfigs().getBoolean(config, "flatten", true);
-			this.sourceStringField = getConfigs().getString(config, "sourceStringField");
+			final Map<String, List<String>> stepMap = new LinkedHashMap<>();
+			final Map<String, JsonPath> jsonPathMap = new LinkedHashMap<>();
+			final boolean flatten = getConfigs().getBoolean(config, "flatten", true);
+			this.sourceStringField = getConfigs().getString(config, "sourceStringField", Fields.ATTACHMENT_BODY);
+			final String charsetName = getConfigs().getString(config, "charset", null);
+			try {
+				this.charset = charsetName == null ? null : Charset.forName(charsetName);
+			} catch (IllegalArgumentException e) {
+				throw new MorphlineCompilationException("Unknown charset: " + charsetName, config, e);
+			}
+			final String mode = getConfigs().getString(config, "mode", TREE);
+			if (!TREE.equals(mode) && !STREAMING.equals(mode) && !JSON_PATH.equals(mode)) {
+				throw new MorphlineCompilationException(
+						"mode must be " + TREE + ", " + STREAMING + " or " + JSON_PATH + ": " + mode, config);
+			}
+			this.streaming = STREAMING.equals(mode);
+			this.maxDepth = getConfigs().getInt(config, "maxDepth", 0);
+			final int maxResults = getConfigs().getInt(config, "maxResults", 0);
 
+			final ArtifactCache cache = ArtifactCache.of(context);
 			Config paths = getConfigs().getConfig(config, "paths");
 			for (Map.Entry<String, Object> entry : new Configs().getEntrySet(paths)) {
 				String fieldName = entry.getKey();
 				String path = entry.getValue().toString().trim();
+				if (JSON_PATH.equals(mode)) {
+					try {
+						jsonPathMap.put(fieldName, cache.get("jsonPath", path, () -> JsonPath.compile(path)));
+					} catch (InvalidPathException e) {
+						throw new MorphlineCompilationException("Invalid JsonPath: " + path, config, e);
+					}
+					continue;
+				}
 				if (path.contains("//")) {
 					throw new MorphlineCompilationException("No support for descendant axis available yet", config);
 				}
-				if (path.startsWith("/")) {
-					path = path.substring(1);
-				}
-				if (path.endsWith("/")) {
-					path = path.substring(0, path.length() - 1);
-				}
-				path = path.trim();
-				for (String step : path.split("/")) {
-					step = step.trim();
-					if (step.length() > ARRAY_TOKEN.length() && step.endsWith(ARRAY_TOKEN)) {
-						step = step.substring(0, step.length() - ARRAY_TOKEN.length());
-						stepMultiMap.put(fieldName, normalize(step));
-						stepMultiMap.put(fieldName, ARRAY_TOKEN);
-					} else {
-						stepMultiMap.put(fieldName, normalize(step));
-					}
-				}
+				stepMap.put(fieldName, cache.get("jsonPathSteps", path, () -> JsonPaths.steps(path)));
 			}
-			this.stepMap = stepMultiMap.asMap();
-			LOG.debug("stepMap: {}", stepMap);
+			this.jsonPaths = new JsonPaths(stepMap, flatten);
+			this.jsonPathExpressions = JSON_PATH.equals(mode) ? new JsonPathExpressions(jsonPathMap, flatten, maxResults)
+					: null;
+			LOG.debug("stepMap: {}, jsonPaths: {}", stepMap, jsonPathMap.keySet());
 			validateArguments();
 		}
 
-		private String normalize(String step) { // for faster subsequent query
-												// performance
-			return ARRAY_TOKEN.equals(step) ? ARRAY_TOKEN : step;
-		}
-
 		@Override
 		protected boolean doProcess(Record inputRecord) {
-			JsonNode datum = toJsonNode(inputRecord);
+			final Object source = markedSource(inputRecord);
 			Record outputRecord = inputRecord.copy();
-
-			for (Map.Entry<String, Collection<String>> entry : stepMap.entrySet()) {
-				String fieldName = entry.getKey();
-				List<String> steps = (List<String>) entry.getValue();
-				extractPath(datum, fieldName, steps, outputRecord, 0);
+			try (JsonParser parser = createParser(source)) {
+				if (streaming) {
+					jsonPaths.extract(parser, outputRecord);
+				} else {
+					JsonNode datum = JsonPaths.READER.readTree(parser);
+					if (datum != null && jsonPathExpressions != null) {
+						jsonPathExpressions.extract(datum, outputRecord);
+					} else if (datum != null) {
+						jsonPaths.extract(datum, outputRecord);
+					}
+				}
+			} catch (IOException e) {
+				throw new MorphlineRuntimeException(e);
+			} finally {
+				reset(source);
 			}
 
 			// pass record to next command in chain:
 			return getChild().process(outputRecord);
 		}
 
-		private JsonNode toJsonNode(Record inputRecord) {
-			String jsonString = (String) inputRecord.getFirstValue(sourceStringField);
-			Preconditions.checkNotNull(jsonString);
-			try {
-				return (new ObjectMapper()).readTree(jsonString);
-			} catch (IOException e) {
-				throw new MorphlineRuntimeException(e);
+		/**
+		 * The json of the record. A stream is marked, so it can be reset for
+		 * the next commands once parsed. A stream not supporting mark() is
+		 * replaced in the record by a BufferedInputStream over it.
+		 */
+		private Object markedSource(Record record) {
+			final List<Object> values = record.get(sourceStringField);
+			if (values.isEmpty()) {
+				return null;
 			}
-		}
-
-		private void extractPath(JsonNode datum, String fieldName, List<String> steps, Record record, int level) {
-			if (level >= steps.size()) {
-				return;
+			final Object source = CharSequenceViews.markable(values.get(0));
+			if (source != values.get(0)) {
+				values.set(0, source);
 			}
-			boolean isLeaf = (level + 1 == steps.size());
-			String step = steps.get(level);
-			if (ARRAY_TOKEN == step) {
-				if (datum.isArray()) {
-					if (isLeaf) {
-						resolve(datum, record, fieldName);
-					} else {
-						Iterator<JsonNode> iter = datum.elements();
-						while (iter.hasNext()) {
-							extractPath(iter.next(), fieldName, steps, record, level + 1);
-						}
-					}
-				}
-			} else if (datum.isObject()) {
-				JsonNode value = datum.get(step);
-				if (value != null) {
-					if (isLeaf) {
-						resolve(value, record, fieldName);
-					} else {
-						extractPath(value, fieldName, steps, record, level + 1);
-					}
-				}
+			if (source instanceof InputStream) {
+				((InputStream) source).mark(Integer.MAX_VALUE); // the whole json is read
 			}
+			return source;
 		}
 
-		private void resolve(JsonNode datum, Record record, String fieldName) {
-			if (datum == null) {
-				return;
+		private static void reset(Object source) {
+			if (source instanceof InputStream) {
+				try {
+					((InputStream) source).reset();
+				} catch (IOException e) {
+					throw new MorphlineRuntimeException(e);
+				}
 			}
+		}
 
-			if (flatten) {
-				flatten(datum, record.get(fieldName));
-				return;
-			}
+		/**
+		 * Parses Strings as they are, bytes and streams without decoding them
+		 * into a String first. Without a charset Jackson detects the UTF
+		 * encoding of the bytes.
+		 */
+		private JsonParser createParser(Object source) throws IOException {
+			final JsonParser parser = createSourceParser(source);
+			return maxDepth > 0 ? new DepthLimitingParser(parser, maxDepth) : parser;
+		}
 
-			if (datum.isObject() || datum.isArray()) {
-				record.put(fieldName, datum);
-			} else if (datum.isTextual()) {
-				record.put(fieldName, datum.asText());
-			} else if (datum.isBoolean()) {
-				record.put(fieldName, datum.asBoolean());
-			} else if (datum.isInt()) {
-				record.put(fieldName, datum.asInt());
-			} else if (datum.isLong()) {
-				record.put(fieldName, datum.asLong());
-			} else if (datum.isShort()) {
-				record.put(fieldName, datum.shortValue());
-			} else if (datum.isDouble()) {
-				record.put(fieldName, datum.asDouble());
-			} else if (datum.isFloat()) {
-				record.put(fieldName, datum.floatValue());
-			} else if (datum.isBigInteger()) {
-				record.put(fieldName, datum.bigIntegerValue());
-			} else if (datum.isBigDecimal()) {
-				record.put(fieldName, datum.decimalValue());
-			} else if (datum.isNull()) {
-				; // ignore
-			} else {
-				record.put(fieldName, datum.toString());
+		private JsonParser createSourceParser(Object source) throws IOException {
+			Preconditions.checkNotNull(source);
+			final JsonFactory factory = JsonPaths.READER.getFactory();
+			if (source instanceof byte[]) {
+				final byte[] bytes = (byte[]) source;
+				return charset == null ? factory.createParser(bytes)
+						: factory.createParser(new InputStreamReader(new ByteArrayInputStream(bytes), charset));
+			} else if (source instanceof InputStream) {
+				final InputStream in = (InputStream) source;
+				return charset == null ? factory.createParser(in) : factory.createParser(new InputStreamReader(in, charset));
+			} else if (source instanceof CharSequence) {
+				return factory.createParser(source.toString());
 			}
+			throw new MorphlineRuntimeException(
+					sourceStringField + " must be a String, byte[] or InputStream: " + source.getClass().getName());
 		}
 
-		@SuppressWarnings("unchecked")
-		private void flatten(JsonNode datum, List list) {
-			if (datum == null) {
-				return;
-			}
+	}
 
-			if (datum.isObject()) {
-				for (JsonNode child : datum) {
-					flatten(child, list);
+	/**
+	 * Fails on objects and arrays nested deeper than maxDepth, before they are
+	 * read. Subtrees skipped by the streaming mode are not checked.
+	 */
+	private static final class DepthLimitingParser extends JsonParserDelegate {
+		private final int maxDepth;
+
+		DepthLimitingParser(JsonParser parser, int maxDepth) {
+			super(parser);
+			this.maxDepth = maxDepth;
+		}
+
+		@Override
+		public JsonToken nextToken() throws IOException {
+			final JsonToken token = super.nextToken();
+			if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+				int depth = 0;
+				for (JsonStreamContext ctx = getParsingContext(); ctx != null && !ctx.inRoot(); ctx = ctx.getParent()) {
+					depth++;
 				}
-			} else if (datum.isArray()) {
-				Iterator<JsonNode> iter = datum.elements();
-				while (iter.hasNext()) {
-					flatten(iter.next(), list);
+				if (depth > maxDepth) {
+					throw new JsonParseException(this, "json is nested deeper than maxDepth " + maxDepth);
 				}
-			} else if (datum.isTextual()) {
-				list.add(datum.asText());
-			} else if (datum.isBoolean()) {
-				list.add(datum.asBoolean());
-			} else if (datum.isInt()) {
-				list.add(datum.asInt());
-			} else if (datum.isLong()) {
-				list.add(datum.asLong());
-			} else if (datum.isShort()) {
-				list.add(datum.shortValue());
-			} else if (datum.isDouble()) {
-				list.add(datum.asDouble());
-			} else if (datum.isFloat()) {
-				list.add(datum.floatValue());
-			} else if (datum.isBigInteger()) {
-				list.add(datum.bigIntegerValue());
-			} else if (datum.isBigDecimal()) {
-				list.add(datum.decimalValue());
-			} else if (datum.isNull()) {
-				; // ignore
-			} else {
-				list.add(datum.toString());
 			}
+			return token;
 		}
-
 	}
 
 }
\ No newline at end of file
@@ -0,0 +1,278 @@
+/*
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.akalaszi.morphlineaddons;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The regexes a field is tested against, a value matches if it matches any
+ * of them. Literal patterns are looked up in a hash map, the prefix, suffix
+ * and contains patterns are found by a single Aho-Corasick scan of the value
+ * once there are enough of them. Only the remaining patterns are run one by
+ * one, within the budget if one is given.
+ *
+ * Thread-safe.
+ */
+final class FieldPatterns {
+	private static final Logger LOGGER = LoggerFactory.getLogger(FieldPatterns.class);
+	private static final int MIN_AFFIXES_FOR_AUTOMATON = 4;
+
+	private final SingleRegex[] regexes;
+	private final Map<String, int[]> exact = new HashMap<>();
+	private int maxExactLength;
+	private final AhoCorasick affixes; // null if there are not enough of them
+	private final int[] affixRegex; // by keyword
+	private final RegexShortcut.Kind[] affixKind; // by keyword
+	private final int[] affixRegexes; // the regexes searched by the automaton
+	private final int[] others; // the regexes run one by one
+
+	FieldPatterns(List<String> regexList, RegexBudget budget) {
+		this(regexList, budget, ArtifactCache.noCache());
+	}
+
+	/**
+	 * @param budget
+	 *            limits the regexes run one by one, null for no limit
+	 * @param cache
+	 *            shares the compiled regexes and automata with the other
+	 *            commands
+	 */
+	FieldPatterns(List<String> regexList, RegexBudget budget, ArtifactCache cache) {
+		this.regexes = new SingleRegex[regexList.size()];
+		final List<String> keywords = new ArrayList<>();
+		final List<Integer> keywordRegex = new ArrayList<>();
+		final List<Integer> affixList = new ArrayList<>();
+		final List<Integer> otherList = new ArrayList<>();
+		for (int i = 0; i < regexes.length; i++) {
+			final String regex = regexList.get(i);
+			regexes[i] = new SingleRegex(cache.get("regex", regex, () -> new CompiledRegex(regex)), budget);
+			final RegexShortcut shortcut = regexes[i].shortcut;
+			final RegexShortcut.Kind kind = shortcut == null ? null : shortcut.kind();
+			if (kind == RegexShortcut.Kind.EQUALS || kind == RegexShortcut.Kind.ANY_OF) {
+				for (String literal : shortcut.literals()) {
+					addExact(literal, i);
+				}
+			} else if (kind == RegexShortcut.Kind.PREFIX || kind == RegexShortcut.Kind.SUFFIX
+					|| kind == RegexShortcut.Kind.CONTAINS) {
+				keywords.add(shortcut.literals().iterator().next());
+				keywordRegex.add(i);
+				affixList.add(i);
+			} else {
+				otherList.add(i);
+			}
+		}
+		if (keywords.size() >= MIN_AFFIXES_FOR_AUTOMATON) {
+			this.affixes = cache.get("keywords", keywords, () -> new AhoCorasick(keywords));
+			this.affixRegex = new int[keywords.size()];
+			this.affixKind = new RegexShortcut.Kind[keywords.size()];
+			for (int k = 0; k < keywords.size(); k++) {
+				affixRegex[k] = keywordRegex.get(k);
+				affixKind[k] = regexes[affixRegex[k]].shortcut.kind();
+			}
+			this.affixRegexes = toArray(affixList);
+		} else {
+			this.affixes = null;
+			this.affixRegex = null;
+			this.affixKind = null;
+			this.affixRegexes = new int[0];
+			otherList.addAll(affixList);
+		}
+		this.others = toArray(otherList);
+		Arrays.sort(others);
+	}
+
+	boolean anyMatches(CharSequence value) {
+		if (exactMatches(value) != null) {
+			return true;
+		}
+		if (affixes != null) {
+			if (RegexShortcut.hasLineTerminator(value)) {
+				for (int i : affixRegexes) {
+					if (regexes[i].matches(value)) {
+						return true;
+					}
+				}
+			} else {
+				final boolean[] found = new boolean[1];
+				affixes.search(value, (keyword, end) -> {
+					found[0] = affixMatches(keyword, end, value);
+					return !found[0];
+				});
+				if (found[0]) {
+					return true;
+				}
+			}
+		}
+		for (int i : others) {
+			if (regexes[i].matches(value)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Adds every regex the value matches to the collection. Returns true if
+	 * there was any.
+	 */
+	boolean addMatches(CharSequence value, Collection<String> matched) {
+		final boolean[] found = new boolean[1];
+		final int[] exactMatches = exactMatches(value);
+		if (exactMatches != null) {
+			for (int i : exactMatches) {
+				matched.add(regexes[i].pattern.pattern());
+			}
+			found[0] = true;
+		}
+		if (affixes != null) {
+			if (RegexShortcut.hasLineTerminator(value)) {
+				for (int i : affixRegexes) {
+					found[0] |= addIfMatches(i, value, matched);
+				}
+			} else {
+				affixes.search(value, (keyword, end) -> {
+					if (affixMatches(keyword, end, value)) {
+						matched.add(regexes[affixRegex[keyword]].pattern.pattern());
+						found[0] = true;
+					}
+					return true;
+				});
+			}
+		}
+		for (int i : others) {
+			found[0] |= addIfMatches(i, value, matched);
+		}
+		return found[0];
+	}
+
+	/**
+	 * Values longer than any literal are not turned into Strings for the
+	 * lookup.
+	 */
+	private int[] exactMatches(CharSequence value) {
+		if (exact.isEmpty() || value.length() > maxExactLength) {
+			return null;
+		}
+		return exact.get(value.toString());
+	}
+
+	private boolean addIfMatches(int i, CharSequence value, Collection<String> matched) {
+		if (regexes[i].matches(value)) {
+			matched.add(regexes[i].pattern.pattern());
+			return true;
+		}
+		return false;
+	}
+
+	private boolean affixMatches(int keyword, int end, CharSequence value) {
+		switch (affixKind[keyword]) {
+		case PREFIX:
+			return end == affixes.length(keyword);
+		case SUFFIX:
+			return end == value.length();
+		default:
+			return true;
+		}
+	}
+
+	private void addExact(String literal, int regex) {
+		maxExactLength = Math.max(maxExactLength, literal.length());
+		final int[] previous = exact.get(literal);
+		if (previous == null) {
+			exact.put(literal, new int[] { regex });
+		} else {
+			final int[] regexIndexes = Arrays.copyOf(previous, previous.length + 1);
+			regexIndexes[previous.length] = regex;
+			exact.put(literal, regexIndexes);
+		}
+	}
+
+	private static int[] toArray(List<Integer> list) {
+		int[] array = new int[list.size()];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = list.get(i);
+		}
+		return array;
+	}
+
+	/**
+	 * A regex and its shortcut, if any. Immutable, shared through the
+	 * {@link ArtifactCache}.
+	 */
+	private static final class CompiledRegex {
+		private final Pattern pattern;
+		private final RegexShortcut shortcut;
+
+		CompiledRegex(String regex) {
+			this.pattern = Pattern.compile(regex);
+			this.shortcut = RegexShortcut.analyze(regex);
+		}
+	}
+
+	/**
+	 * A regex run on its own, as a string operation if possible.
+	 */
+	private static final class SingleRegex {
+		private final Pattern pattern;
+		private final RegexShortcut shortcut;
+		private final ThreadLocal<Matcher> matcher;
+		private final RegexBudget budget;
+
+		SingleRegex(CompiledRegex compiled, RegexBudget budget) {
+			this.pattern = compiled.pattern;
+			this.shortcut = compiled.shortcut;
+			this.budget = budget;
+			this.matcher = ThreadLocal.withInitial(() -> pattern.matcher(""));
+		}
+
+		boolean matches(CharSequence value) {
+			final Boolean shortcutMatches = shortcut == null ? null : shortcut.matches(value);
+			final boolean matches;
+			if (shortcutMatches != null) {
+				matches = shortcutMatches;
+			} else if (budget == null) {
+				final Matcher m = matcher.get().reset(value);
+				matches = m.matches();
+				m.reset(""); // do not keep the value alive
+			} else {
+				matches = matchesWithinBudget(value);
+			}
+			LOGGER.debug("regex: >{}< value: >{}< {}", pattern, value, matches);
+			return matches;
+		}
+
+		private boolean matchesWithinBudget(CharSequence value) {
+			final Matcher m = matcher.get().reset(budget.wrap(value));
+			try {
+				return m.matches();
+			} catch (RegexBudget.ExceededException e) {
+				return budget.onExceeded(pattern, value);
+			} finally {
+				m.reset("");
+			}
+		}
+	}
+
+}
@@ -0,0 +1,301 @@
+/*
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.akalaszi.morphlineaddons;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.kitesdk.morphline.api.MorphlineCompilationException;
+import org.kitesdk.morphline.api.MorphlineContext;
+import org.kitesdk.morphline.api.Record;
+
+import com.codahale.metrics.MetricRegistry;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigList;
+import com.typesafe.config.ConfigUtil;
+import com.typesafe.config.ConfigValue;
+
+/**
+ * The "field : regex" rules of containsRegex and conditionalDrop, compiled
+ * once when the command is built. The value of a rule can also be a list of
+ * regexes, and further regexes can be read from the files given under
+ * _patternFiles, one per line. A rule matches if any value of its field
+ * matches any of its regexes, or only the first value for the fields given as
+ * firstValueOnly. See {@link FieldPatterns} for how many regexes are matched
+ * at once.
+ *
+ * If _matchedPatternsField is given and every rule matches, the regexes that
+ * matched are added to that field of the record, in the order the rules
+ * were compiled in. Nothing is added when a rule does not match.
+ *
+ * _regexMaxSteps and _regexTimeoutMillis limit the work of a regex on a
+ * value, _regexTimeoutPolicy (match, nonMatch or fail) tells what happens
+ * when the limit is hit, see {@link RegexBudget}. Each hit increments the
+ * commandName.field.regexBudgetExceeded counter.
+ *
+ * byte[] and InputStream values are matched without turning them into
+ * Strings, decoded with _charset (default UTF-8), see
+ * {@link CharSequenceViews}. Streams longer than _maxStreamBytes do not match
+ * and are counted in the commandName.streamTooLong counter. Streams not
+ * supporting mark() are replaced in the record by a BufferedInputStream.
+ *
+ * {@link #allMatch} stops at the first rule that does not match. The rules
+ * are reordered every REORDER_INTERVAL records, so the rule failing most
+ * often is tried first. The statistics behind the order are updated without
+ * synchronization, a lost update only makes the order slightly less precise.
+ *
+ * Thread-safe.
+ */
+final class FieldRegexRules {
+	static final String PATTERN_FILES = "_patternFiles";
+	static final String MATCHED_PATTERNS_FIELD = "_matchedPatternsField";
+	static final String REGEX_MAX_STEPS = "_regexMaxSteps";
+	static final String REGEX_TIMEOUT_MILLIS = "_regexTimeoutMillis";
+	static final String REGEX_TIMEOUT_POLICY = "_regexTimeoutPolicy";
+	static final String CHARSET = "_charset";
+	static final String MAX_STREAM_BYTES = "_maxStreamBytes";
+	private static final int DEFAULT_MAX_STREAM_BYTES = 8 * 1024 * 1024;
+	private static final int REORDER_INTERVAL = 1024;
+	private static final Comparator<Rule> MOST_FAILING_FIRST = (a, b) -> Double.compare(b.failureRate(),
+			a.failureRate());
+
+	private final String matchedPatternsField;
+	private final AtomicLong evaluations = new AtomicLong();
+	private volatile Rule[] order;
+
+	private FieldRegexRules(List<Rule> rules, String matchedPatternsField) {
+		this.order = rules.toArray(new Rule[rules.size()]);
+		this.matchedPatternsField = matchedPatternsField;
+	}
+
+	/**
+	 * Every entry of the config is a rule, the value being the regex or the
+	 * list of regexes, apart from the settings starting with an underscore
+	 * listed above.
+	 */
+	static FieldRegexRules compile(Config config, Set<String> firstValueOnly, MorphlineContext context,
+			String commandName) {
+		final MetricRegistry metrics = context.getMetricRegistry();
+		final ArtifactCache cache = ArtifactCache.of(context);
+		final Map<String, List<String>> regexesByField = new LinkedHashMap<>();
+		String matchedPatternsField = null;
+		long maxSteps = 0;
+		long timeoutMillis = 0;
+		RegexBudget.Policy policy = RegexBudget.Policy.NON_MATCH;
+		Charset charset = StandardCharsets.UTF_8;
+		int maxStreamBytes = DEFAULT_MAX_STREAM_BYTES;
+		for (Map.Entry<String, ConfigValue> entry : config.entrySet()) {
+			final String key = entry.getKey();
+			final List<String> path = ConfigUtil.splitPath(key);
+			if (CHARSET.equals(key)) {
+				try {
+					charset = Charset.forName(config.getString(key));
+				} catch (IllegalArgumentException e) {
+					throw new MorphlineCompilationException("Unknown charset: " + config.getString(key), config, e);
+				}
+			} else if (MAX_STREAM_BYTES.equals(key)) {
+				maxStreamBytes = config.getInt(key);
+			} else if (REGEX_MAX_STEPS.equals(key)) {
+				maxSteps = config.getLong(key);
+			} else if (REGEX_TIMEOUT_MILLIS.equals(key)) {
+				timeoutMillis = config.getLong(key);
+			} else if (REGEX_TIMEOUT_POLICY.equals(key)) {
+				try {
+					policy = RegexBudget.parsePolicy(config.getString(key));
+				} catch (IllegalArgumentException e) {
+					throw new MorphlineCompilationException(e.getMessage(), config);
+				}
+			} else if (MATCHED_PATTERNS_FIELD.equals(key)) {
+				matchedPatternsField = entry.getValue().unwrapped().toString();
+			} else if (path.size() == 2 && PATTERN_FILES.equals(path.get(0))) {
+				final String file = entry.getValue().unwrapped().toString();
+				regexesByField(regexesByField, path.get(1)).addAll(readPatternFile(file, config));
+			} else if (entry.getValue() instanceof ConfigList) {
+				for (ConfigValue regex : (ConfigList) entry.getValue()) {
+					regexesByField(regexesByField, key).add(ConditionalDropBuilder.dropQuotes(regex.render()));
+				}
+			} else {
+				regexesByField(regexesByField, key).add(ConditionalDropBuilder.dropQuotes(entry.getValue().render()));
+			}
+		}
+		final CharSequenceViews views = new CharSequenceViews(charset, maxStreamBytes,
+				metrics.counter(MetricRegistry.name(commandName, "streamTooLong")));
+		final List<Rule> rules = new ArrayList<>();
+		for (Map.Entry<String, List<String>> e : regexesByField.entrySet()) {
+			final String field = e.getKey();
+			RegexBudget budget = null;
+			if (maxSteps > 0 || timeoutMillis > 0) {
+				budget = new RegexBudget(maxSteps, timeoutMillis, policy, field,
+						metrics.counter(MetricRegistry.name(commandName, field, "regexBudgetExceeded")));
+			}
+			rules.add(new Rule(rules.size(), field, new FieldPatterns(e.getValue(), budget, cache), firstValueOnly.contains(field), views));
+		}
+		return new FieldRegexRules(rules, matchedPatternsField);
+	}
+
+	private static List<String> regexesByField(Map<String, List<String>> regexesByField, String field) {
+		return regexesByField.computeIfAbsent(field, f -> new ArrayList<>());
+	}
+
+	/**
+	 * One regex per line, blank lines and lines starting with # are skipped.
+	 */
+	private static List<String> readPatternFile(String file, Config config) {
+		try {
+			final List<String> regexes = new ArrayList<>();
+			for (String line : Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8)) {
+				if (!line.trim().isEmpty() && !line.startsWith("#")) {
+					regexes.add(line);
+				}
+			}
+			return regexes;
+		} catch (IOException e) {
+			throw new MorphlineCompilationException("Cannot read pattern file " + file, config, e);
+		}
+	}
+
+	boolean allMatch(Record record) {
+		final Rule[] rules = order;
+		try {
+			if (matchedPatternsField == null) {
+				for (Rule rule : rules) {
+					if (!rule.matches(record, null)) {
+						return false;
+					}
+				}
+				return true;
+			}
+			final List<Set<String>> matchedByRule = new ArrayList<>(Collections.nCopies(rules.length, null));
+			for (Rule rule : rules) {
+				final Set<String> matched = new LinkedHashSet<>();
+				if (!rule.matches(record, matched)) {
+					return false;
+				}
+				matchedByRule.set(rule.index, matched);
+			}
+			// in the order the rules were compiled in, whatever order they ran in
+			final Set<String> matched = new LinkedHashSet<>();
+			for (Set<String> regexes : matchedByRule) {
+				matched.addAll(regexes);
+			}
+			for (String regex : matched) {
+				record.put(matchedPatternsField, regex);
+			}
+			return true;
+		} finally {
+			if (rules.length > 1 && evaluations.incrementAndGet() % REORDER_INTERVAL == 0) {
+				reorder(rules);
+			}
+		}
+	}
+
+	private void reorder(Rule[] rules) {
+		final Rule[] sorted = rules.clone();
+		Arrays.sort(sorted, MOST_FAILING_FIRST);
+		for (Rule rule : sorted) {
+			rule.decay();
+		}
+		order = sorted;
+	}
+
+	private static final class Rule {
+		/** the position of the rule when compiled */
+		private final int index;
+		private final String field;
+		private final FieldPatterns patterns;
+		private final boolean firstValueOnly;
+		private final CharSequenceViews views;
+		private long evaluated;
+		private long failed;
+
+		Rule(int index, String field, FieldPatterns patterns, boolean firstValueOnly, CharSequenceViews views) {
+			this.index = index;
+			this.field = field;
+			this.patterns = patterns;
+			this.firstValueOnly = firstValueOnly;
+			this.views = views;
+		}
+
+		/**
+		 * @param matched
+		 *            collects the regexes matched, null to stop at the first
+		 */
+		boolean matches(Record record, Set<String> matched) {
+			final List<Object> values = record.get(field);
+			final boolean matches = firstValueOnly ? !values.isEmpty() && matches(values, 0, matched)
+					: anyValueMatches(values, matched);
+			evaluated++;
+			if (!matches) {
+				failed++;
+			}
+			return matches;
+		}
+
+		private boolean anyValueMatches(List<Object> values, Set<String> matched) {
+			boolean matches = false;
+			for (int i = 0; i < values.size(); i++) {
+				if (matches(values, i, matched)) {
+					if (matched == null) {
+						return true;
+					}
+					matches = true;
+				}
+			}
+			return matches;
+		}
+
+		private boolean matches(List<Object> values, int i, Set<String> matched) {
+			final Object value = CharSequenceViews.markable(values.get(i));
+			if (value != values.get(i)) {
+				values.set(i, value);
+			}
+			try {
+				final CharSequence chars = views.view(value);
+				if (chars == null) {
+					return false;
+				}
+				return matched == null ? patterns.anyMatches(chars) : patterns.addMatches(chars, matched);
+			} finally {
+				views.release();
+			}
+		}
+
+		double failureRate() {
+			return evaluated == 0 ? 0 : (double) failed / evaluated;
+		}
+
+		/**
+		 * Halves the statistics, so the order follows changes of the data.
+		 */
+		void decay() {
+			evaluated /= 2;
+			failed /= 2;
+		}
+	}
+
+}
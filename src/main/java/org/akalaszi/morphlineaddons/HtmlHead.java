@@ -0,0 +1,536 @@
+/*
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.akalaszi.morphlineaddons;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.jsoup.nodes.Attribute;
+import org.jsoup.nodes.Attributes;
+import org.jsoup.nodes.Comment;
+import org.jsoup.nodes.DataNode;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.TextNode;
+import org.jsoup.parser.Parser;
+import org.jsoup.parser.Tag;
+
+/**
+ * Reads the head of an html page without parsing the rest of it. The page is
+ * tokenized until the body starts, and the elements jsoup would put into the
+ * head are built into an otherwise empty document. Nothing after the start of
+ * the body is read.
+ *
+ * Only the selectors matching inside the head give the same result on this
+ * document as on the whole page, see {@link #isHeadSelector(String)}. Markup
+ * the reader does not follow (noscript in the head, comments in scripts,
+ * CDATA, character references between the tags) makes it give up, the caller
+ * parses the whole page then.
+ *
+ * Not thread-safe, one instance reads one page.
+ */
+final class HtmlHead {
+	private static final int BUFFER_SIZE = 4096;
+	/** the longest markup read ahead and put back: "/noframes" and the character after it */
+	private static final int MAX_UNREAD = 10;
+
+	private static final String IDENT = "[-\\w]+";
+	private static final String ATTRIBUTE = "\\[\\s*[^\\s=\\]\\[]+\\s*(?:=\\s*(?:\"[^\"]*\"|'[^']*'|[^\\]\\s]+)\\s*)?\\]";
+	private static final String CONDITION = "(?:#" + IDENT + "|\\." + IDENT + "|" + ATTRIBUTE + ")";
+	private static final String COMPOUND = "(?:(?:" + IDENT + "|\\*)" + CONDITION + "*|" + CONDITION + "+)";
+	private static final String IN_HEAD = "head" + CONDITION + "*(?:\\s+" + COMPOUND + ")*";
+	private static final Pattern HEAD_SELECTOR = Pattern.compile("\\s*" + IN_HEAD + "(?:\\s*,\\s*" + IN_HEAD + ")*\\s*",
+			Pattern.CASE_INSENSITIVE);
+
+	private static final Set<String> VOID_HEAD_TAGS = new HashSet<>(
+			Arrays.asList("base", "basefont", "bgsound", "command", "link", "meta"));
+	private static final Set<String> RAW_TEXT_HEAD_TAGS = new HashSet<>(Arrays.asList("noframes", "style", "script"));
+	private static final Set<String> AFTER_HEAD_TAGS = new HashSet<>(Arrays.asList("base", "basefont", "bgsound",
+			"link", "meta", "noframes", "script", "style", "title"));
+
+	private enum State {
+		BEFORE_HEAD, IN_HEAD, AFTER_HEAD
+	}
+
+	/**
+	 * Thrown when the reader cannot tell what jsoup would do.
+	 */
+	private static final class GiveUp extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		GiveUp() {
+			super(null, null, false, false);
+		}
+	}
+
+	private final Reader in;
+	private final char[] buffer = new char[BUFFER_SIZE + MAX_UNREAD];
+	private int pos;
+	private int limit;
+	private final StringBuilder chars = new StringBuilder();
+	/** the last tag read ended with "/&gt;" */
+	private boolean selfClosing;
+
+	private final Document doc = Document.createShell("");
+	private State state = State.BEFORE_HEAD;
+
+	private HtmlHead(Reader in) {
+		this.in = in;
+	}
+
+	/**
+	 * True if the selector starts with the head element and is made of tag,
+	 * id, class and attribute conditions and descendant combinators only, so
+	 * the elements it matches are in the head.
+	 */
+	static boolean isHeadSelector(String css) {
+		return HEAD_SELECTOR.matcher(css).matches();
+	}
+
+	/**
+	 * @return a document with the head of the page and an empty body, or null
+	 *         if the whole page has to be parsed
+	 */
+	static Document read(Reader in) throws IOException {
+		final HtmlHead head = new HtmlHead(in);
+		try {
+			head.readHead();
+		} catch (GiveUp e) {
+			return null;
+		}
+		return head.doc;
+	}
+
+	private void readHead() throws IOException, GiveUp {
+		int c;
+		while ((c = read()) != -1) {
+			if (c == '<') {
+				if (!markup()) {
+					return;
+				}
+			} else if (c == '&') {
+				throw new GiveUp();
+			} else if (!whitespace(c)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Reads the text up to the next markup. Whitespace is kept in the head,
+	 * anything else starts the body.
+	 *
+	 * @return false if the body starts
+	 */
+	private boolean whitespace(int first) throws IOException {
+		chars.setLength(0);
+		int c = first;
+		boolean blank = true;
+		do {
+			blank &= isWhitespace(c);
+			chars.append((char) c);
+		} while ((c = read()) != -1 && c != '<' && c != '&');
+		unread(c);
+		if (!blank) {
+			return false;
+		}
+		if (state == State.IN_HEAD) {
+			doc.head().appendChild(new TextNode(chars.toString()));
+		}
+		return true;
+	}
+
+	/**
+	 * Reads the markup after a '&lt;'.
+	 *
+	 * @return false if the body starts
+	 */
+	private boolean markup() throws IOException, GiveUp {
+		final int c = read();
+		if (c == '!') {
+			if (skip("--")) {
+				comment(comment());
+			} else if (skip("[")) {
+				throw new GiveUp(); // CDATA
+			} else if (skipIgnoreCase("doctype")) {
+				bogusComment(); // ignored
+			} else {
+				comment(bogusComment());
+			}
+			return true;
+		} else if (c == '?') {
+			unread(c);
+			comment(bogusComment());
+			return true;
+		} else if (c == '/') {
+			final int first = read();
+			if (isLetter(first)) {
+				final String name = tagName(first);
+				return attributes() == null || endTag(name);
+			} else if (first == -1) {
+				return false; // the '</' is text
+			} else if (first != '>') {
+				unread(first);
+				comment(bogusComment());
+			}
+			return true;
+		} else if (isLetter(c)) {
+			final String name = tagName(c);
+			final Attributes attributes = attributes();
+			return attributes == null || startTag(name, attributes);
+		}
+		return false; // the '<' is text
+	}
+
+	private void comment(String data) {
+		if (state == State.IN_HEAD) {
+			doc.head().appendChild(new Comment(data));
+		}
+	}
+
+	private boolean startTag(String name, Attributes attributes) throws IOException, GiveUp {
+		if (selfClosing && !VOID_HEAD_TAGS.contains(name)) {
+			throw new GiveUp();
+		}
+		if (name.equals("html")) {
+			return true; // its attributes are not read
+		}
+		if (state == State.BEFORE_HEAD) {
+			state = State.IN_HEAD;
+			if (name.equals("head")) {
+				normalize(attributes);
+				doc.head().attributes().addAll(attributes);
+				return true;
+			}
+		}
+		if (name.equals("head")) {
+			return true; // ignored
+		}
+		if (state == State.AFTER_HEAD && !AFTER_HEAD_TAGS.contains(name)) {
+			return false;
+		}
+		if (VOID_HEAD_TAGS.contains(name)) {
+			doc.head().appendChild(new Element(Tag.valueOf(name), "", attributes));
+		} else if (name.equals("title")) {
+			normalize(attributes);
+			final Element title = new Element(Tag.valueOf(name), "", attributes);
+			final String text = rawText(name);
+			if (!text.isEmpty()) {
+				title.appendChild(new TextNode(Parser.unescapeEntities(text, false)));
+			}
+			doc.head().appendChild(title);
+		} else if (RAW_TEXT_HEAD_TAGS.contains(name)) {
+			normalize(attributes);
+			final Element element = new Element(Tag.valueOf(name), "", attributes);
+			final String data = rawText(name);
+			if (name.equals("script") && data.contains("<!--")) {
+				throw new GiveUp(); // script data escape states
+			}
+			if (!data.isEmpty()) {
+				element.appendChild(name.equals("noframes") ? new TextNode(data) : new DataNode(data));
+			}
+			doc.head().appendChild(element);
+		} else if (name.equals("noscript")) {
+			throw new GiveUp();
+		} else {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Lowercases the attribute names, as jsoup does for the elements it does
+	 * not insert empty.
+	 */
+	private static void normalize(Attributes attributes) throws GiveUp {
+		for (Attribute attribute : attributes) {
+			final String key = attribute.getKey();
+			if (!key.equals(key.toLowerCase(Locale.ENGLISH))) {
+				throw new GiveUp(); // the lowercase name may be a duplicate
+			}
+		}
+	}
+
+	/**
+	 * @return false if the body starts
+	 */
+	private boolean endTag(String name) {
+		if (name.equals("body") || name.equals("html")) {
+			return false;
+		}
+		if (name.equals("head") || name.equals("br")) {
+			state = State.AFTER_HEAD;
+		}
+		return true; // others are ignored
+	}
+
+	private String tagName(int first) throws IOException {
+		chars.setLength(0);
+		chars.append(Character.toLowerCase((char) first));
+		int c;
+		while ((c = read()) != -1 && !isWhitespace(c) && c != '/' && c != '>') {
+			chars.append(Character.toLowerCase((char) c));
+		}
+		unread(c);
+		return chars.toString();
+	}
+
+	/**
+	 * Reads the attributes up to the end of the tag, null if the page ends
+	 * before. A value given more than once keeps the last one.
+	 */
+	private Attributes attributes() throws IOException {
+		final Attributes attributes = new Attributes();
+		selfClosing = false;
+		int c = read();
+		while (true) {
+			while (isWhitespace(c) || c == '/') {
+				selfClosing = c == '/';
+				c = read();
+			}
+			if (c == '>') {
+				return attributes;
+			} else if (c == -1) {
+				return null;
+			}
+			selfClosing = false;
+			chars.setLength(0);
+			do {
+				chars.append((char) c);
+				c = read();
+			} while (c != -1 && !isWhitespace(c) && c != '/' && c != '>' && c != '=');
+			final String name = chars.toString();
+			while (isWhitespace(c)) {
+				c = read();
+			}
+			if (c != '=') {
+				attributes.put(name, null);
+				continue;
+			}
+			do {
+				c = read();
+			} while (isWhitespace(c));
+			if (c == -1) {
+				attributes.put(name, null);
+				return attributes; // as jsoup does
+			}
+			chars.setLength(0);
+			if (c == '"' || c == '\'') {
+				final int quote = c;
+				while ((c = read()) != -1 && c != quote) {
+					chars.append((char) c);
+				}
+				attributes.put(name, Parser.unescapeEntities(chars.toString(), true));
+				c = read();
+			} else {
+				while (c != -1 && !isWhitespace(c) && c != '>') {
+					chars.append((char) c);
+					c = read();
+				}
+				attributes.put(name, chars.length() == 0 ? null : Parser.unescapeEntities(chars.toString(), true));
+			}
+		}
+	}
+
+	/**
+	 * Reads the text of a title, script or style up to its end tag.
+	 */
+	private String rawText(String name) throws IOException, GiveUp {
+		final StringBuilder text = new StringBuilder();
+		int c;
+		while ((c = read()) != -1) {
+			if (c == '<' && isEndTag(name)) {
+				return text.toString();
+			}
+			text.append((char) c);
+		}
+		throw new GiveUp(); // no end tag
+	}
+
+	/**
+	 * After a '&lt;' in raw text: consumes the end tag of the element if it
+	 * follows, or nothing.
+	 */
+	private boolean isEndTag(String name) throws IOException {
+		chars.setLength(0);
+		int c = read();
+		if (c == '/') {
+			chars.append('/');
+			int i = 0;
+			while (i < name.length() && (c = read()) != -1) {
+				chars.append((char) c);
+				if (Character.toLowerCase((char) c) != name.charAt(i)) {
+					break;
+				}
+				i++;
+			}
+			if (i == name.length()) {
+				c = read();
+				if (isWhitespace(c) || c == '/' || c == '>') {
+					unread(c);
+					attributes();
+					return true;
+				}
+				unread(c);
+			}
+		} else {
+			unread(c);
+		}
+		// not the end tag, read the characters again as text
+		unread(chars, chars.length());
+		return false;
+	}
+
+	/**
+	 * Reads a comment, after the '&lt;!--'.
+	 */
+	private String comment() throws IOException {
+		chars.setLength(0);
+		int c = read();
+		if (c == '>') {
+			return "";
+		}
+		int dashes = 0;
+		if (c == '-') {
+			c = read();
+			if (c == '>') {
+				return "";
+			}
+			dashes = 1; // not part of the data
+		}
+		while (c != -1) {
+			if (c == '>' && dashes >= 2) {
+				return chars.substring(0, Math.max(chars.length() - 2, 0));
+			}
+			chars.append((char) c);
+			if (c == '-') {
+				dashes++;
+			} else if (c == '!' && dashes >= 2) {
+				c = read();
+				if (c == '>') {
+					return chars.substring(0, Math.max(chars.length() - 3, 0));
+				}
+				dashes = 0;
+				continue;
+			} else {
+				dashes = 0;
+			}
+			c = read();
+		}
+		return chars.toString();
+	}
+
+	/**
+	 * Reads a comment up to the next '&gt;'.
+	 */
+	private String bogusComment() throws IOException {
+		chars.setLength(0);
+		int c;
+		while ((c = read()) != -1 && c != '>') {
+			chars.append((char) c);
+		}
+		return chars.toString();
+	}
+
+	/**
+	 * Consumes the expected characters if they follow, or nothing.
+	 */
+	private boolean skip(String expected) throws IOException {
+		for (int i = 0; i < expected.length(); i++) {
+			final int c = read();
+			if (c != expected.charAt(i)) {
+				unread(c);
+				unread(expected, i);
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean skipIgnoreCase(String expected) throws IOException {
+		chars.setLength(0);
+		for (int i = 0; i < expected.length(); i++) {
+			final int c = read();
+			if (c == -1 || Character.toLowerCase((char) c) != expected.charAt(i)) {
+				unread(c);
+				unread(chars, i);
+				return false;
+			}
+			chars.append((char) c);
+		}
+		return true;
+	}
+
+	private int read() throws IOException {
+		if (pos == limit) {
+			if (limit < 0) {
+				return -1;
+			}
+			pos = 0;
+			limit = in.read(buffer, 0, BUFFER_SIZE);
+			if (limit <= 0) {
+				limit = -1;
+				pos = -1;
+				return -1;
+			}
+		}
+		return buffer[pos++];
+	}
+
+	private void unread(int c) {
+		if (c == -1) {
+			return;
+		}
+		if (pos > 0) {
+			buffer[--pos] = (char) c;
+		} else {
+			unread(String.valueOf((char) c), 1);
+		}
+	}
+
+	/**
+	 * Puts back the first length characters, so they are read again.
+	 */
+	private void unread(CharSequence s, int length) {
+		if (pos >= length) {
+			pos -= length;
+		} else {
+			final int remaining = limit < 0 ? 0 : limit - pos;
+			System.arraycopy(buffer, Math.max(pos, 0), buffer, length, remaining);
+			pos = 0;
+			limit = length + remaining;
+		}
+		for (int i = 0; i < length; i++) {
+			buffer[pos + i] = s.charAt(i);
+		}
+	}
+
+	private static boolean isWhitespace(int c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\f' || c == '\r';
+	}
+
+	/**
+	 * A letter opens a tag, as in the tokenizer of jsoup.
+	 */
+	private static boolean isLetter(int c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || Character.isLetter(c);
+	}
+
+}
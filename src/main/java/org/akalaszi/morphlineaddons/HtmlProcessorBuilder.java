@@ -14,11 +14,16 @@
  */
 package org.akalaszi.morphlineaddons;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.Charset;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -27,10 +32,10 @@ import java.util.stream.Collectors;
 
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
-import org.jsoup.nodes.Element;
-import org.jsoup.select.Elements;
+import org.jsoup.select.Selector;
 import org.kitesdk.morphline.api.Command;
 import org.kitesdk.morphline.api.CommandBuilder;
+import org.kitesdk.morphline.api.MorphlineCompilationException;
 import org.kitesdk.morphline.api.MorphlineContext;
 import org.kitesdk.morphline.api.MorphlineRuntimeException;
 import org.kitesdk.morphline.api.Record;
@@ -59,17 +64,42 @@ public final class HtmlProcessorBuilder implements CommandBuilder {
 	private static final class HtmlProcessor extends AbstractCommand {
 
 		private static final String SOURCE_FIELD_NAME = "_source";
+		private static final String STREAM_HEAD = "_streamHead";
+		private static final String RESULT_CACHE = "_resultCache";
 
-		private final Set<Map.Entry<String, ConfigValue>> entries;
+		private final HtmlSelectors selectors;
 		private final String sourceFieldName;
+		private final boolean streamHead;
+		/** null if the results are not cached */
+		private final ResultCache resultCache;
+		private final String resultCacheNamespace;
 
 		public HtmlProcessor(CommandBuilder builder, Config config, Command parent, Command child,
 				MorphlineContext context) {
 			super(builder, config, parent, child, context);
 			final Set<Entry<String, ConfigValue>> entrySet = config.entrySet();
-			this.entries = entrySet.stream().filter(e -> !SOURCE_FIELD_NAME.equals(e.getKey().replaceAll("\"", "")))
-					.collect(Collectors.toSet());
+			final Set<Entry<String, ConfigValue>> entries = entrySet.stream()
+					.filter(e -> !SOURCE_FIELD_NAME.equals(e.getKey().replaceAll("\"", "")))
+					.filter(e -> !STREAM_HEAD.equals(e.getKey().replaceAll("\"", "")))
+					.filter(e -> !RESULT_CACHE.equals(e.getKey().replaceAll("\"", ""))).collect(Collectors.toSet());
+			final Map<String, String> cssByField = new LinkedHashMap<>();
+			for (Entry<String, ConfigValue> e : entries) {
+				cssByField.put(e.getKey(), e.getValue().render().replaceAll("\"", ""));
+			}
+			try {
+				this.selectors = new HtmlSelectors(cssByField, ArtifactCache.of(context));
+			} catch (Selector.SelectorParseException e) {
+				throw new MorphlineCompilationException("Invalid CSS selector: " + e.getMessage(), config, e);
+			}
 			this.sourceFieldName = getConfigOrDefault(config, SOURCE_FIELD_NAME, Fields.ATTACHMENT_BODY);
+			final boolean streamHeadRequested = config.hasPath(STREAM_HEAD) && config.getBoolean(STREAM_HEAD);
+			this.streamHead = streamHeadRequested && selectors.inHead();
+			if (streamHeadRequested && !streamHead) {
+				LOG.info("Not all the selectors are in the head, the whole page is parsed: {}", cssByField.values());
+			}
+			final boolean cacheResults = config.hasPath(RESULT_CACHE) && config.getBoolean(RESULT_CACHE);
+			this.resultCache = cacheResults ? ResultCache.of(context) : null;
+			this.resultCacheNamespace = "htmlProcessor\n" + selectors.key();
 		}
 
 		private String getConfigOrDefault(Config config, String key, String defaultValue) {
@@ -82,16 +112,21 @@ public final class HtmlProcessorBuilder implements CommandBuilder {
 
 		@Override
 		protected boolean doProcess(Record record) {
-			final Object firstValue = record.getFirstValue(sourceFieldName);
+			final Object firstValue = streamHead && resultCache == null ? markableSource(record)
+					: record.getFirstValue(sourceFieldName);
 			try {
-				String content = parseAsString(firstValue);
-				Document doc = Jsoup.parse(content);
-				for (Entry<String, ConfigValue> e : entries) {
-					final String cssSelector = e.getValue().render().replaceAll("\"", "");
-
-					final Optional<Map<String, ?>> extracted = extract(doc, cssSelector);
+				final List<List<String>> found;
+				if (resultCache != null) {
+					final Object content = firstValue instanceof InputStream
+							? ByteStreams.toByteArray((InputStream) firstValue) : firstValue;
+					found = resultCache.get(ResultCache.key(resultCacheNamespace, content), () -> select(content));
+				} else {
+					found = select(firstValue);
+				}
+				for (int i = 0; i < found.size(); i++) {
+					final Optional<Map<String, ?>> extracted = asSet(found.get(i));
 					if (extracted.isPresent()) {
-						record.put(e.getKey(), extracted.get());
+						record.put(selectors.fieldName(i), extracted.get());
 					} else {
 						return true;
 					}
@@ -104,28 +139,56 @@ public final class HtmlProcessorBuilder implements CommandBuilder {
 			}
 		}
 
+		private List<List<String>> select(Object source) throws IOException {
+			final Document doc = streamHead ? parseHead(source) : Jsoup.parse(parseAsString(source));
+			return selectors.select(doc);
+		}
+
+		/**
+		 * The first value of the source field, a stream wrapped to support mark in
+		 * the record too, so that the next commands read it from the start.
+		 */
+		private Object markableSource(Record record) {
+			final List<Object> values = record.get(sourceFieldName);
+			if (values.isEmpty()) {
+				return null;
+			}
+			final Object source = CharSequenceViews.markable(values.get(0));
+			if (source != values.get(0)) {
+				values.set(0, source);
+			}
+			return source;
+		}
+
 		/**
-		 * 
-		 * @param doc
-		 * @param css
-		 *            optionally, after the ; you can specify the attribute
-		 *            name. If there is no attribute name specified, the dom
-		 *            element is returned.
-		 * @return
+		 * Reads the page only up to the start of the body, or all of it when
+		 * HtmlHead cannot follow the markup of the head. A stream is marked and
+		 * reset for the second attempt, it is read to the end only then.
 		 */
-		static Optional<Map<String, ?>> extract(Document doc, String css) {
-			String[] selectors = css.split(";");
-			List<String> ret = new ArrayList<>();
-			final Elements elements = doc.select(selectors[0]);
-			for (Element e : elements) {
-				final String content;
-				if (selectors.length == 2) {
-					content = e.attr(selectors[1]);
-				} else {
-					content = Jsoup.parse(e.toString()).text();
+		private Document parseHead(Object source) throws IOException {
+			final Reader reader;
+			if (source instanceof String) {
+				reader = new StringReader((String) source);
+			} else if (source instanceof byte[]) {
+				reader = new InputStreamReader(new ByteArrayInputStream((byte[]) source), Charset.defaultCharset());
+			} else if (source instanceof InputStream) {
+				final InputStream in = (InputStream) source;
+				in.mark(Integer.MAX_VALUE);
+				final Document head;
+				try {
+					head = HtmlHead.read(new InputStreamReader(in, Charset.defaultCharset()));
+				} finally {
+					in.reset();
 				}
-				ret.add(content);
+				return head != null ? head : Jsoup.parse(parseAsString(in));
+			} else {
+				reader = new StringReader("");
 			}
+			final Document head = HtmlHead.read(reader);
+			return head != null ? head : Jsoup.parse(parseAsString(source));
+		}
+
+		static Optional<Map<String, ?>> asSet(List<String> ret) {
 			if (ret.isEmpty()) {
 				return Optional.absent();
 			}
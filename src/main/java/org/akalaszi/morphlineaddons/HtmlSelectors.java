@@ -0,0 +1,139 @@
+/*
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.akalaszi.morphlineaddons;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+import org.jsoup.select.Evaluator;
+import org.jsoup.select.NodeTraversor;
+import org.jsoup.select.NodeVisitor;
+import org.jsoup.select.QueryParser;
+
+/**
+ * The CSS selectors of htmlProcessor, parsed into jsoup Evaluators once. All
+ * of them are evaluated in a single walk over the document, instead of a
+ * doc.select() walk for each field.
+ *
+ * Immutable, thread-safe.
+ */
+final class HtmlSelectors {
+	private final List<Extraction> extractions = new ArrayList<>();
+
+	/**
+	 * @param cssByField
+	 *            the selector of each field. Optionally, after the ; you can
+	 *            specify the attribute name. If there is no attribute name
+	 *            specified, the text of the dom element is extracted.
+	 * @throws org.jsoup.select.Selector.SelectorParseException
+	 *             if a selector is invalid
+	 */
+	HtmlSelectors(Map<String, String> cssByField, ArtifactCache cache) {
+		for (Map.Entry<String, String> e : cssByField.entrySet()) {
+			extractions.add(new Extraction(e.getKey(), e.getValue(), cache));
+		}
+	}
+
+	int size() {
+		return extractions.size();
+	}
+
+	String fieldName(int i) {
+		return extractions.get(i).fieldName;
+	}
+
+	/**
+	 * The selectors and attributes in their order: selectors with the same
+	 * key give the same values for a page.
+	 */
+	String key() {
+		final StringBuilder key = new StringBuilder();
+		for (Extraction extraction : extractions) {
+			key.append(extraction.css).append(';').append(extraction.attribute).append('\n');
+		}
+		return key.toString();
+	}
+
+	/**
+	 * True if every selector only matches elements in the head, see
+	 * {@link HtmlHead#isHeadSelector(String)}.
+	 */
+	boolean inHead() {
+		for (Extraction extraction : extractions) {
+			if (!HtmlHead.isHeadSelector(extraction.css)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Walks the document once, testing every element against all the
+	 * selectors. The values found for each field are in document order, as
+	 * doc.select() would give them.
+	 */
+	List<List<String>> select(Document doc) {
+		final List<List<String>> found = new ArrayList<>(extractions.size());
+		for (int i = 0; i < extractions.size(); i++) {
+			found.add(new ArrayList<>(1));
+		}
+		NodeTraversor.traverse(new NodeVisitor() {
+			@Override
+			public void head(Node node, int depth) {
+				if (node instanceof Element) {
+					final Element element = (Element) node;
+					for (int i = 0; i < extractions.size(); i++) {
+						final Extraction extraction = extractions.get(i);
+						if (extraction.evaluator.matches(doc, element)) {
+							found.get(i).add(extraction.content(element));
+						}
+					}
+				}
+			}
+
+			@Override
+			public void tail(Node node, int depth) {
+			}
+		}, doc);
+		return found;
+	}
+
+	private static final class Extraction {
+		private final String fieldName;
+		private final String css;
+		private final Evaluator evaluator;
+		private final String attribute;
+
+		Extraction(String fieldName, String css, ArtifactCache cache) {
+			final String[] selectors = css.split(";");
+			this.fieldName = fieldName;
+			this.css = selectors[0];
+			this.evaluator = cache.get("cssSelector", selectors[0], () -> QueryParser.parse(selectors[0]));
+			this.attribute = selectors.length == 2 ? selectors[1] : null;
+		}
+
+		String content(Element e) {
+			if (attribute != null) {
+				return e.attr(attribute);
+			}
+			return HtmlText.text(e);
+		}
+	}
+
+}
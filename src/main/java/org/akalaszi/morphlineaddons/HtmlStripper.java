@@ -0,0 +1,852 @@
+/*
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.akalaszi.morphlineaddons;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import org.jsoup.helper.StringUtil;
+import org.jsoup.parser.Parser;
+import org.jsoup.parser.Tag;
+
+/**
+ * The text of an html page as Jsoup.parse(html).text() gives it, without
+ * building the document. A state machine runs over the characters: it skips
+ * tags, comments, scripts and styles, decodes the character references of the
+ * text, and follows the open elements only as far as the text depends on
+ * them: a space before every block element and br, and whitespace kept
+ * verbatim inside pre, textarea and title.
+ *
+ * Well-formed markup gives the same text as jsoup 1.11.2. For broken markup
+ * the tree builder of jsoup moves text around (e.g. text directly in a table
+ * is put before the table) or inserts elements the stripper only guesses. In
+ * strict mode the stripper gives up on such markup instead, and the caller
+ * parses it with jsoup.
+ *
+ * Not thread-safe, one instance strips one page.
+ */
+final class HtmlStripper {
+	private static final int MAX_REUSED_CAPACITY = 1 << 20;
+	private static final int PRESERVE_WHITESPACE_DEPTH = 6;
+
+	private static final Set<String> PRESERVE_WHITESPACE = set("pre", "plaintext", "title", "textarea");
+	private static final Set<String> HEAD_TAGS = set("base", "basefont", "bgsound", "command", "link", "meta", "title",
+			"noframes", "script", "style");
+	private static final Set<String> AFTER_HEAD_TAGS = set("base", "basefont", "bgsound", "link", "meta", "noframes",
+			"script", "style", "title");
+	/** the text of these is not in the document text */
+	private static final Set<String> DATA = set("script", "style");
+	/** the text of these is not parsed, but it is in the document text */
+	private static final Set<String> RAW_TEXT = set("iframe", "noembed", "noframes", "xmp");
+	private static final Set<String> CLOSES_P = set("address", "article", "aside", "blockquote", "center", "details",
+			"dir", "div", "dl", "fieldset", "figcaption", "figure", "footer", "header", "hgroup", "menu", "nav", "ol",
+			"p", "section", "summary", "ul", "h1", "h2", "h3", "h4", "h5", "h6", "pre", "listing", "form", "plaintext",
+			"table", "hr", "xmp", "li", "dd", "dt");
+	/** closed with the elements opened in them */
+	private static final Set<String> BLOCK_ENDS = set("address", "article", "aside", "blockquote", "button",
+			"center", "details", "dir", "div", "dl", "fieldset", "figcaption", "figure", "footer", "header", "hgroup",
+			"listing", "menu", "nav", "ol", "pre", "section", "summary", "ul", "applet", "marquee", "object");
+	private static final Set<String> HEADINGS = set("h1", "h2", "h3", "h4", "h5", "h6");
+	private static final Set<String> SCOPE = set("applet", "caption", "html", "table", "td", "th", "marquee",
+			"object");
+	private static final Set<String> BUTTON_SCOPE = set("button");
+	private static final Set<String> LIST_SCOPE = set("ol", "ul");
+	private static final Set<String> FORMATTING = set("a", "b", "big", "code", "em", "font", "i", "nobr", "s",
+			"small", "strike", "strong", "tt", "u");
+	private static final Set<String> SPECIAL = set("address", "applet", "area", "article", "aside", "base",
+			"basefont", "bgsound", "blockquote", "body", "br", "button", "caption", "center", "col", "colgroup",
+			"command", "dd", "details", "dir", "div", "dl", "dt", "embed", "fieldset", "figcaption", "figure", "footer",
+			"form", "frame", "frameset", "h1", "h2", "h3", "h4", "h5", "h6", "head", "header", "hgroup", "hr", "html",
+			"iframe", "img", "input", "isindex", "li", "link", "listing", "marquee", "menu", "meta", "nav", "noembed",
+			"noframes", "noscript", "object", "ol", "p", "param", "plaintext", "pre", "script", "section", "select",
+			"style", "summary", "table", "tbody", "td", "textarea", "tfoot", "th", "thead", "title", "tr", "ul", "wbr",
+			"xmp");
+	private static final Set<String> TABLE = set("table", "tbody", "thead", "tfoot", "tr");
+	private static final Set<String> TABLE_SECTIONS = set("tbody", "thead", "tfoot");
+	private static final Set<String> CELLS = set("td", "th");
+	private static final Set<String> TABLE_PARTS = set("caption", "col", "colgroup", "tbody", "td", "tfoot", "th",
+			"thead", "tr");
+	/** what jsoup does with these needs more than the open elements */
+	private static final Set<String> UNSUPPORTED = set("frameset", "frame", "template", "isindex", "nobr");
+
+	private static final ThreadLocal<StringBuilder> BUFFER = ThreadLocal.withInitial(StringBuilder::new);
+
+	private enum Phase {
+		BEFORE_HEAD, IN_HEAD, AFTER_HEAD, BODY
+	}
+
+	/**
+	 * Thrown in strict mode when the text may differ from the one of jsoup.
+	 */
+	private static final class Malformed extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		Malformed() {
+			super(null, null, false, false);
+		}
+	}
+
+	private final String html;
+	private final boolean strict;
+	private final StringBuilder text;
+	/** the elements open in the body, the innermost last */
+	private final List<String> open = new ArrayList<>();
+	private Phase phase = Phase.BEFORE_HEAD;
+	private boolean afterHeadWhitespace;
+	private int pos;
+	/** the last tag read ended with "/&gt;" */
+	private boolean selfClosing;
+
+	private HtmlStripper(String html, boolean strict, StringBuilder text) {
+		this.html = html;
+		this.strict = strict;
+		this.text = text;
+	}
+
+	/**
+	 * @return the text of the html, or null if strict and the markup is not
+	 *         followed
+	 */
+	static String text(String html, boolean strict) {
+		final StringBuilder text = BUFFER.get();
+		text.setLength(0);
+		try {
+			new HtmlStripper(html, strict, text).strip();
+			return text.toString().trim();
+		} catch (Malformed e) {
+			return null;
+		} finally {
+			if (text.capacity() > MAX_REUSED_CAPACITY) {
+				BUFFER.remove(); // do not keep a huge page alive
+			}
+		}
+	}
+
+	private void strip() throws Malformed {
+		if (html.indexOf(0) >= 0) {
+			malformed(); // replaced or dropped by jsoup, depending on where
+		}
+		while (pos < html.length()) {
+			if (isMarkup(pos)) {
+				pos++;
+				markup();
+			} else {
+				characters();
+			}
+		}
+		if (phase != Phase.BODY) {
+			startBody();
+		}
+	}
+
+	/**
+	 * True if the '&lt;' at i starts markup, otherwise it is text.
+	 */
+	private boolean isMarkup(int i) {
+		if (html.charAt(i) != '<' || i + 1 >= html.length()) {
+			return false;
+		}
+		final char c = html.charAt(i + 1);
+		return isLetter(c) || c == '!' || c == '?' || (c == '/' && i + 2 < html.length());
+	}
+
+	/**
+	 * The text up to the next markup.
+	 */
+	private void characters() throws Malformed {
+		final int start = pos;
+		boolean blank = true;
+		boolean references = false;
+		do {
+			final char c = html.charAt(pos);
+			if (c == '&') {
+				references = true;
+				blank = false;
+			} else if (!isWhitespace(c)) {
+				blank = false;
+			}
+			pos++;
+		} while (pos < html.length() && !isMarkup(pos));
+		if (phase != Phase.BODY) {
+			if (blank && phase == Phase.AFTER_HEAD) {
+				afterHeadWhitespace = true;
+				return;
+			} else if (blank) {
+				if (phase == Phase.IN_HEAD) {
+					appendNormalised(html, start, pos);
+				}
+				return;
+			}
+			startBody();
+		}
+		if (!blank && isTableContext()) {
+			malformed(); // put before the table by jsoup
+		}
+		if (references) {
+			final String decoded = unescape(start, pos);
+			append(decoded, 0, decoded.length());
+		} else {
+			append(html, start, pos);
+		}
+	}
+
+	/**
+	 * After a '&lt;'.
+	 */
+	private void markup() throws Malformed {
+		final char c = html.charAt(pos);
+		if (c == '!') {
+			pos++;
+			if (html.startsWith("--", pos)) {
+				pos += 2;
+				comment();
+			} else if (html.startsWith("[CDATA[", pos)) {
+				pos += "[CDATA[".length();
+				cdata();
+			} else {
+				skipTo('>');
+			}
+		} else if (c == '?') {
+			skipTo('>');
+		} else if (c == '/') {
+			pos++;
+			if (isLetter(html.charAt(pos))) {
+				final String name = tagName();
+				if (skipAttributes()) {
+					endTag(name);
+				}
+			} else {
+				skipTo('>');
+			}
+		} else {
+			final String name = tagName();
+			if (skipAttributes()) {
+				startTag(name);
+			}
+		}
+	}
+
+	private void startTag(String name) throws Malformed {
+		if (phase != Phase.BODY) {
+			if (headStartTag(name)) {
+				return;
+			}
+			startBody();
+		}
+		bodyStartTag(name.equals("image") ? "img" : name);
+	}
+
+	/**
+	 * @return false if the tag starts the body
+	 */
+	private boolean headStartTag(String name) throws Malformed {
+		if (name.equals("html")) {
+			return true;
+		}
+		if (phase == Phase.BEFORE_HEAD) {
+			phase = Phase.IN_HEAD;
+			if (name.equals("head")) {
+				return true;
+			}
+		}
+		if (name.equals("head")) {
+			return true;
+		}
+		if (name.equals("noscript") && phase == Phase.IN_HEAD) {
+			malformed();
+			return false;
+		}
+		if (!(phase == Phase.AFTER_HEAD ? AFTER_HEAD_TAGS : HEAD_TAGS).contains(name)) {
+			return false;
+		}
+		insertContent(name, PRESERVE_WHITESPACE.contains(name));
+		return true;
+	}
+
+	/**
+	 * The elements of the head, and those read as text in the body.
+	 */
+	private void insertContent(String name, boolean preserveWhitespace) throws Malformed {
+		insert(name);
+		if (selfClosing && !Tag.valueOf(name).isEmpty()) {
+			malformed();
+			return;
+		}
+		if (DATA.contains(name)) {
+			final int start = pos;
+			final int end = rawText(name);
+			if (name.equals("script") && html.substring(start, end).contains("<!--")) {
+				malformed(); // the escaped states of script data
+			}
+		} else if (RAW_TEXT.contains(name)) {
+			final int start = pos;
+			final int end = rawText(name);
+			append(html, start, end, preserveWhitespace);
+		} else if (name.equals("title") || name.equals("textarea")) {
+			final int start = pos;
+			final int end = rawText(name);
+			final String decoded = unescape(start, end);
+			append(decoded, 0, decoded.length(), preserveWhitespace);
+		}
+	}
+
+	private void bodyStartTag(String name) throws Malformed {
+		if (UNSUPPORTED.contains(name)) {
+			malformed();
+		}
+		if (name.equals("html") || name.equals("head") || name.equals("body")) {
+			return;
+		}
+		if (selfClosing && Tag.valueOf(name).isKnownTag() && !Tag.valueOf(name).isEmpty()) {
+			malformed();
+		}
+		if (inSelect()) {
+			selectStartTag(name);
+		} else if (isTableContext() || (TABLE_PARTS.contains(name) && inTableScope())) {
+			tableStartTag(name);
+		} else if (!TABLE_PARTS.contains(name)) {
+			flowStartTag(name);
+		} // ignored outside of tables
+	}
+
+	private void selectStartTag(String name) throws Malformed {
+		if (name.equals("option")) {
+			popIf("option");
+			push(name);
+		} else if (name.equals("optgroup")) {
+			popIf("option");
+			popIf("optgroup");
+			push(name);
+		} else if (name.equals("select")) {
+			popTo("select");
+		} else if (name.equals("input") || name.equals("keygen") || name.equals("textarea")) {
+			popTo("select");
+			bodyStartTag(name);
+		} else if (name.equals("script")) {
+			insertContent(name, false);
+		} else if (TABLE_PARTS.contains(name) || name.equals("table")) {
+			malformed();
+		} // others are ignored
+	}
+
+	private void tableStartTag(String name) throws Malformed {
+		if (CELLS.contains(name) || name.equals("tr") || TABLE_SECTIONS.contains(name) || name.equals("caption")
+				|| name.equals("col") || name.equals("colgroup")) {
+			closeCell();
+		}
+		final String current = current();
+		if (current.equals("colgroup") && !name.equals("col")) {
+			pop();
+			tableStartTag(name);
+		} else if (name.equals("caption") || name.equals("colgroup")) {
+			clearTo("table");
+			push(name);
+		} else if (name.equals("col")) {
+			if (!current.equals("colgroup")) {
+				clearTo("table");
+				push("colgroup");
+			}
+			insert(name);
+		} else if (TABLE_SECTIONS.contains(name)) {
+			clearTo("table");
+			push(name);
+		} else if (name.equals("tr")) {
+			clearToSection();
+			push(name);
+		} else if (CELLS.contains(name)) {
+			clearToSection();
+			if (!current().equals("tr")) {
+				push("tr");
+			}
+			push(name);
+		} else if (DATA.contains(name)) {
+			insertContent(name, false);
+		} else if (isTableContext()) {
+			malformed(); // put before the table by jsoup
+			flowStartTag(name);
+		} else {
+			flowStartTag(name);
+		}
+	}
+
+	private void flowStartTag(String name) throws Malformed {
+		if (CLOSES_P.contains(name) && inScope("p", BUTTON_SCOPE)) {
+			popTo("p");
+		}
+		if (HEADINGS.contains(name) && HEADINGS.contains(current())) {
+			pop();
+		} else if (name.equals("li")) {
+			closeListItem(set("li"));
+		} else if (name.equals("dd") || name.equals("dt")) {
+			closeListItem(set("dd", "dt"));
+		} else if (name.equals("a") || name.equals("form") || name.equals("button")) {
+			if (open.contains(name)) {
+				malformed();
+				popTo(name);
+			}
+		} else if (name.equals("option")) {
+			popIf("option");
+		} else if (name.equals("rp") || name.equals("rt")) {
+			if (current().equals("rp") || current().equals("rt")) {
+				pop();
+			}
+		}
+		if (name.equals("plaintext")) {
+			insert(name);
+			append(html, pos, html.length(), true);
+			pos = html.length();
+		} else if (HEAD_TAGS.contains(name) || RAW_TEXT.contains(name) || name.equals("textarea")) {
+			insertContent(name, preserveWhitespace(name));
+		} else {
+			push(name);
+		}
+	}
+
+	private void closeListItem(Set<String> items) throws Malformed {
+		for (int i = open.size() - 1; i >= 0; i--) {
+			final String node = open.get(i);
+			if (items.contains(node)) {
+				popTo(node);
+				return;
+			}
+			if (SPECIAL.contains(node) && !node.equals("address") && !node.equals("div") && !node.equals("p")) {
+				return;
+			}
+		}
+	}
+
+	private void endTag(String name) throws Malformed {
+		if (phase != Phase.BODY) {
+			if (name.equals("body") || name.equals("html")) {
+				startBody();
+			} else if (name.equals("head") || name.equals("br")) {
+				phase = Phase.AFTER_HEAD;
+			}
+			return;
+		}
+		if (name.equals("body") || name.equals("html")) {
+			return;
+		}
+		if (inSelect() && !name.equals("select") && !name.equals("option") && !name.equals("optgroup")) {
+			if (TABLE_PARTS.contains(name) || name.equals("table")) {
+				malformed();
+			}
+			return; // ignored
+		}
+		if ((name.equals("p") || name.equals("br")) && isTableContext()) {
+			malformed(); // inserted before the table by jsoup
+		}
+		if (name.equals("form")) {
+			final int form = open.lastIndexOf("form");
+			if (form >= 0) {
+				open.remove(form); // the elements opened in it stay open
+			}
+		} else if (name.equals("p")) {
+			if (inScope("p", BUTTON_SCOPE)) {
+				popTo("p");
+			} else {
+				insert("p"); // an empty p
+			}
+		} else if (name.equals("br")) {
+			insert("br");
+		} else if (name.equals("optgroup")) {
+			if (current().equals("option") && open.size() > 1 && open.get(open.size() - 2).equals("optgroup")) {
+				pop();
+			}
+			popIf("optgroup");
+		} else if (name.equals("option")) {
+			popIf("option");
+		} else if (name.equals("li") || name.equals("dd") || name.equals("dt")) {
+			if (inScope(name, name.equals("li") ? LIST_SCOPE : null)) {
+				popTo(name);
+			}
+		} else if (BLOCK_ENDS.contains(name)) {
+			if (inScope(name, null)) {
+				popTo(name);
+			}
+		} else if (HEADINGS.contains(name)) {
+			for (int i = open.size() - 1; i >= 0 && !SCOPE.contains(open.get(i)); i--) {
+				if (HEADINGS.contains(open.get(i))) {
+					popTo(open.get(i));
+					return;
+				}
+			}
+		} else if (TABLE.contains(name) || CELLS.contains(name) || name.equals("caption")
+				|| name.equals("colgroup")) {
+			if (inTableScope(name)) {
+				popTo(name);
+			}
+		} else if (FORMATTING.contains(name)) {
+			if (current().equals(name)) {
+				pop();
+			} else if (open.contains(name)) {
+				malformed(); // the adoption agency of jsoup
+				popTo(name);
+			}
+		} else {
+			for (int i = open.size() - 1; i >= 0; i--) {
+				final String node = open.get(i);
+				if (node.equals(name)) {
+					popTo(name);
+					return;
+				}
+				if (SPECIAL.contains(node)) {
+					return; // ignored
+				}
+			}
+		}
+	}
+
+	private void startBody() {
+		if (afterHeadWhitespace) {
+			appendNormalised(" ", 0, 1);
+		}
+		phase = Phase.BODY;
+		insert("body");
+	}
+
+	private void insert(String name) {
+		final Tag tag = Tag.valueOf(name);
+		if ((tag.isBlock() || name.equals("br")) && text.length() > 0 && !lastCharIsWhitespace()) {
+			text.append(' ');
+		}
+	}
+
+	private void push(String name) {
+		insert(name);
+		if (!selfClosing && !Tag.valueOf(name).isEmpty()) {
+			open.add(name);
+		}
+	}
+
+	private void pop() {
+		open.remove(open.size() - 1);
+	}
+
+	private void popIf(String name) {
+		if (current().equals(name)) {
+			pop();
+		}
+	}
+
+	private void popTo(String name) {
+		for (int i = open.size() - 1; i >= 0; i--) {
+			if (open.remove(i).equals(name)) {
+				return;
+			}
+		}
+	}
+
+	private void clearTo(String name) {
+		while (!open.isEmpty() && !current().equals(name)) {
+			pop();
+		}
+	}
+
+	private void clearToSection() {
+		while (!open.isEmpty() && !TABLE_SECTIONS.contains(current()) && !current().equals("table")) {
+			pop();
+		}
+		if (current().equals("table")) {
+			push("tbody");
+		}
+	}
+
+	private void closeCell() {
+		for (int i = open.size() - 1; i >= 0 && !open.get(i).equals("table"); i--) {
+			if (CELLS.contains(open.get(i))) {
+				popTo(open.get(i));
+				return;
+			}
+		}
+	}
+
+	private String current() {
+		return open.isEmpty() ? "body" : open.get(open.size() - 1);
+	}
+
+	/**
+	 * @param extraScope
+	 *            the elements limiting the scope besides SCOPE, or null
+	 */
+	private boolean inScope(String name, Set<String> extraScope) {
+		for (int i = open.size() - 1; i >= 0; i--) {
+			final String node = open.get(i);
+			if (node.equals(name)) {
+				return true;
+			}
+			if (SCOPE.contains(node) || (extraScope != null && extraScope.contains(node))) {
+				return false;
+			}
+		}
+		return false;
+	}
+
+	private boolean inTableScope() {
+		return open.contains("table");
+	}
+
+	private boolean inTableScope(String name) {
+		for (int i = open.size() - 1; i >= 0; i--) {
+			final String node = open.get(i);
+			if (node.equals(name)) {
+				return true;
+			}
+			if (node.equals("table")) {
+				return false;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * True if the text and most elements would be put before the table.
+	 */
+	private boolean isTableContext() {
+		return TABLE.contains(current()) || current().equals("colgroup");
+	}
+
+	private boolean inSelect() {
+		for (int i = open.size() - 1; i >= 0; i--) {
+			final String node = open.get(i);
+			if (node.equals("select")) {
+				return true;
+			}
+			if (!node.equals("option") && !node.equals("optgroup")) {
+				return false;
+			}
+		}
+		return false;
+	}
+
+	private boolean preserveWhitespace(String name) {
+		if (PRESERVE_WHITESPACE.contains(name)) {
+			return true;
+		}
+		for (int i = open.size() - 1; i >= 0 && i >= open.size() - PRESERVE_WHITESPACE_DEPTH + 1; i--) {
+			if (PRESERVE_WHITESPACE.contains(open.get(i))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private String unescape(int start, int end) throws Malformed {
+		final String decoded = Parser.unescapeEntities(html.substring(start, end), false);
+		if (decoded.indexOf(0) >= 0) {
+			malformed();
+		}
+		return decoded;
+	}
+
+	/**
+	 * Text in the current element.
+	 */
+	private void append(CharSequence s, int start, int end) {
+		append(s, start, end, phase == Phase.BODY && preserveWhitespaceHere());
+	}
+
+	private boolean preserveWhitespaceHere() {
+		for (int i = open.size() - 1; i >= 0 && i >= open.size() - PRESERVE_WHITESPACE_DEPTH; i--) {
+			if (PRESERVE_WHITESPACE.contains(open.get(i))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void append(CharSequence s, int start, int end, boolean preserveWhitespace) {
+		if (preserveWhitespace) {
+			text.append(s, start, end);
+		} else {
+			appendNormalised(s, start, end);
+		}
+	}
+
+	/**
+	 * StringUtil.appendNormalisedWhitespace() on a part of s.
+	 */
+	private void appendNormalised(CharSequence s, int start, int end) {
+		boolean lastWasWhite = false;
+		boolean reachedNonWhite = false;
+		final boolean stripLeading = lastCharIsWhitespace();
+		for (int i = start; i < end; i++) {
+			int c = s.charAt(i);
+			if (Character.isHighSurrogate((char) c)) {
+				c = Character.codePointAt(s, i);
+				i += Character.charCount(c) - 1;
+			}
+			if (StringUtil.isActuallyWhitespace(c)) {
+				if ((stripLeading && !reachedNonWhite) || lastWasWhite) {
+					continue;
+				}
+				text.append(' ');
+				lastWasWhite = true;
+			} else if (!StringUtil.isInvisibleChar(c)) {
+				text.appendCodePoint(c);
+				lastWasWhite = false;
+				reachedNonWhite = true;
+			}
+		}
+	}
+
+	private boolean lastCharIsWhitespace() {
+		return text.length() != 0 && text.charAt(text.length() - 1) == ' ';
+	}
+
+	/**
+	 * Skips the text of a script, style, title... up to its end tag.
+	 *
+	 * @return the end of the text
+	 */
+	private int rawText(String name) throws Malformed {
+		int i = pos;
+		while ((i = html.indexOf("</", i)) >= 0) {
+			final int end = i + 2 + name.length();
+			if (html.regionMatches(true, i + 2, name, 0, name.length()) && end < html.length()
+					&& (isWhitespace(html.charAt(end)) || html.charAt(end) == '/' || html.charAt(end) == '>')) {
+				pos = end;
+				if (!skipAttributes()) {
+					malformed();
+				}
+				return i;
+			}
+			i += 2;
+		}
+		malformed(); // no end tag
+		pos = html.length();
+		return pos;
+	}
+
+	private void comment() {
+		if (html.startsWith(">", pos) || html.startsWith("->", pos)) {
+			pos = html.indexOf('>', pos) + 1;
+			return;
+		}
+		int i = pos;
+		while ((i = html.indexOf("--", i)) >= 0) {
+			int end = i + 2;
+			while (end < html.length() && html.charAt(end) == '-') {
+				end++;
+			}
+			if (html.startsWith(">", end)) {
+				pos = end + 1;
+				return;
+			} else if (html.startsWith("!>", end)) {
+				pos = end + 2;
+				return;
+			}
+			i = end;
+		}
+		pos = html.length();
+	}
+
+	private void cdata() throws Malformed {
+		if (phase != Phase.BODY) {
+			malformed();
+			startBody();
+		}
+		if (isTableContext()) {
+			malformed();
+		}
+		final int start = pos;
+		final int end = html.indexOf("]]>", pos);
+		pos = end < 0 ? html.length() : end + 3;
+		append(html, start, end < 0 ? html.length() : end);
+	}
+
+	private void skipTo(char c) {
+		final int end = html.indexOf(c, pos);
+		pos = end < 0 ? html.length() : end + 1;
+	}
+
+	private String tagName() {
+		final int start = pos;
+		while (pos < html.length()) {
+			final char c = html.charAt(pos);
+			if (isWhitespace(c) || c == '/' || c == '>') {
+				break;
+			}
+			pos++;
+		}
+		return html.substring(start, pos).toLowerCase(Locale.ENGLISH);
+	}
+
+	/**
+	 * Skips the attributes up to the end of the tag.
+	 *
+	 * @return false if the page ends before the tag
+	 */
+	private boolean skipAttributes() {
+		boolean slash = false;
+		while (pos < html.length()) {
+			final char c = html.charAt(pos++);
+			if (c == '>') {
+				selfClosing = slash;
+				return true;
+			}
+			slash = c == '/';
+			if (c == '=') {
+				while (pos < html.length() && isWhitespace(html.charAt(pos))) {
+					pos++;
+				}
+				if (pos == html.length()) {
+					selfClosing = false;
+					return true; // jsoup emits the tag
+				}
+				final char quote = html.charAt(pos);
+				if (quote == '"' || quote == '\'') {
+					final int end = html.indexOf(quote, pos + 1);
+					if (end < 0) {
+						pos = html.length();
+						return false;
+					}
+					pos = end + 1;
+				} else {
+					while (pos < html.length() && !isWhitespace(html.charAt(pos)) && html.charAt(pos) != '>') {
+						pos++;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	private void malformed() throws Malformed {
+		if (strict) {
+			throw new Malformed();
+		}
+	}
+
+	private static boolean isWhitespace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\f' || c == '\r';
+	}
+
+	/**
+	 * A letter opens a tag, as in the tokenizer of jsoup.
+	 */
+	private static boolean isLetter(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || Character.isLetter(c);
+	}
+
+	private static Set<String> set(String... names) {
+		return new HashSet<>(Arrays.asList(names));
+	}
+
+}
@@ -0,0 +1,186 @@
+/*
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.akalaszi.morphlineaddons;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.jsoup.Jsoup;
+import org.jsoup.helper.StringUtil;
+import org.jsoup.nodes.Comment;
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+import org.jsoup.nodes.TextNode;
+
+/**
+ * The text of an element as Jsoup.parse(element.toString()).text() gives it,
+ * without serializing and parsing the element again. It walks the element
+ * like jsoup 1.11.2 Element.text() does, into a StringBuilder reused by the
+ * thread, and adds the spaces the pretty printed html would have added
+ * between elements. Whitespace is preserved only inside the pre, textarea
+ * and title elements of the element itself, as in the reparsed html.
+ *
+ * Elements holding a pre or textarea are still reparsed: their pretty
+ * printed whitespace is kept verbatim, and the parser drops a leading line
+ * break. So are the elements holding an iframe, noembed, noframes, xmp or
+ * plaintext, whose text is escaped by the serializer but not unescaped by
+ * the parser.
+ *
+ * Thread-safe.
+ */
+final class HtmlText {
+	private static final int MAX_REUSED_CAPACITY = 1 << 20;
+	private static final int PRESERVE_WHITESPACE_DEPTH = 6;
+	private static final String TITLE = "title";
+	private static final Set<String> RAW_TEXT = new HashSet<>(
+			Arrays.asList("iframe", "noembed", "noframes", "xmp", "plaintext"));
+	private static final Set<String> TABLE_PARTS = new HashSet<>(
+			Arrays.asList("table", "thead", "tbody", "tfoot", "tr"));
+	/** the elements the parser keeps in a table, section or row */
+	private static final Set<String> TABLE_CONTENT = new HashSet<>(Arrays.asList("caption", "colgroup", "col",
+			"thead", "tbody", "tfoot", "tr", "td", "th", "script", "style", "template", "form", "input"));
+
+	private static final ThreadLocal<StringBuilder> BUFFER = ThreadLocal.withInitial(StringBuilder::new);
+
+	private HtmlText() {
+	}
+
+	static String text(Element root) {
+		StringBuilder accum = BUFFER.get();
+		accum.setLength(0);
+		Node node = root;
+		int depth = 0;
+		while (node != null) {
+			if (!head(node, root, accum)) {
+				return Jsoup.parse(root.toString()).text();
+			}
+			if (node.childNodeSize() > 0) {
+				node = node.childNode(0);
+				depth++;
+			} else {
+				tail(node, accum);
+				while (node.nextSibling() == null && depth > 0) {
+					node = node.parentNode();
+					depth--;
+					tail(node, accum);
+				}
+				if (node == root) {
+					break;
+				}
+				node = node.nextSibling();
+			}
+		}
+		String text = accum.toString().trim();
+		if (accum.capacity() > MAX_REUSED_CAPACITY) {
+			BUFFER.remove(); // do not keep a huge page alive
+		}
+		return text;
+	}
+
+	/**
+	 * @return false if the text cannot be told without parsing the html again
+	 */
+	private static boolean head(Node node, Element root, StringBuilder accum) {
+		if (node instanceof TextNode) {
+			TextNode textNode = (TextNode) node;
+			String text = textNode.getWholeText();
+			if (isTablePart(textNode.parentNode()) && !textNode.isBlank()) {
+				return false; // put before the table by the parser
+			}
+			if (textNode.siblingIndex() == 0 && formatAsBlock(textNode.parentNode()) && !textNode.isBlank()) {
+				indent(accum);
+			}
+			if (preserveWhitespace(textNode.parentNode(), root)) {
+				accum.append(text);
+			} else {
+				StringUtil.appendNormalisedWhitespace(accum, text, lastCharIsWhitespace(accum));
+			}
+		} else if (node instanceof Comment) {
+			// the pretty printer puts every comment on a line of its own
+			indent(accum);
+		} else if (node instanceof Element) {
+			Element element = (Element) node;
+			if (element.tag().preserveWhitespace() && !TITLE.equals(element.tagName())) {
+				// the pretty printed pre keeps the line breaks and indentation, the
+				// parser drops the first line break
+				return false;
+			}
+			if (isTablePart(element.parentNode()) && !TABLE_CONTENT.contains(element.tagName())) {
+				return false; // put before the table by the parser
+			}
+			if (RAW_TEXT.contains(element.tagName())) {
+				// the text is escaped in the html, and not unescaped when parsed
+				return false;
+			}
+			if (accum.length() > 0 && (element.isBlock() || element.tagName().equals("br")
+					|| element.tag().formatAsBlock() || formatAsBlock(element.parentNode()))) {
+				indent(accum);
+			}
+		}
+		return true;
+	}
+
+	private static void tail(Node node, StringBuilder accum) {
+		if (node instanceof Element && node.childNodeSize() > 0 && ((Element) node).tag().formatAsBlock()) {
+			indent(accum);
+		}
+	}
+
+	/**
+	 * The line break and indentation of the pretty printed html, read back
+	 * as a single space.
+	 */
+	private static void indent(StringBuilder accum) {
+		if (accum.length() > 0 && !lastCharIsWhitespace(accum)) {
+			accum.append(' ');
+		}
+	}
+
+	private static boolean isTablePart(Node node) {
+		return node instanceof Element && TABLE_PARTS.contains(((Element) node).tagName());
+	}
+
+	private static boolean formatAsBlock(Node node) {
+		return node instanceof Element && ((Element) node).tag().formatAsBlock();
+	}
+
+	/**
+	 * Only the ancestors up to the root count, the html of the root does not
+	 * carry the rest.
+	 */
+	private static boolean preserveWhitespace(Node node, Element root) {
+		if (node instanceof Element) {
+			Element element = (Element) node;
+			int i = 0;
+			do {
+				if (element.tag().preserveWhitespace()) {
+					return true;
+				}
+				if (element == root) {
+					return false;
+				}
+				element = element.parent();
+				i++;
+			} while (i < PRESERVE_WHITESPACE_DEPTH && element != null);
+		}
+		return false;
+	}
+
+	private static boolean lastCharIsWhitespace(StringBuilder accum) {
+		return accum.length() != 0 && accum.charAt(accum.length() - 1) == ' ';
+	}
+
+}
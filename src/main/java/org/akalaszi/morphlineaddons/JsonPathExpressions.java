@@ -0,0 +1,69 @@
+/*
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.akalaszi.morphlineaddons;
+
+import java.util.Map;
+
+import org.kitesdk.morphline.api.Record;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.jayway.jsonpath.Configuration;
+import com.jayway.jsonpath.EvaluationListener.EvaluationContinuation;
+import com.jayway.jsonpath.JsonPath;
+import com.jayway.jsonpath.Option;
+import com.jayway.jsonpath.spi.json.JacksonJsonNodeJsonProvider;
+import com.jayway.jsonpath.spi.mapper.JacksonMappingProvider;
+
+/**
+ * The paths of extractJsonPathsFromField in jsonPath mode: Jayway JsonPath
+ * expressions (filters, wildcards, deep scan), compiled once and evaluated
+ * on the JsonNode tree of the document, without converting it to another
+ * representation. The values found are added the same way as in the tree
+ * mode.
+ *
+ * A path stops after maxResults values (0: no limit), so a deep scan over a
+ * large document does not collect all of it.
+ *
+ * Immutable, thread-safe.
+ */
+final class JsonPathExpressions {
+	private static final Configuration CONFIGURATION = Configuration.builder()
+			.jsonProvider(new JacksonJsonNodeJsonProvider()).mappingProvider(new JacksonMappingProvider())
+			.options(Option.ALWAYS_RETURN_LIST, Option.SUPPRESS_EXCEPTIONS).build();
+
+	private final Map<String, JsonPath> paths;
+	private final boolean flatten;
+	private final Configuration configuration;
+
+	JsonPathExpressions(Map<String, JsonPath> paths, boolean flatten, int maxResults) {
+		this.paths = paths;
+		this.flatten = flatten;
+		this.configuration = maxResults <= 0 ? CONFIGURATION
+				: CONFIGURATION.addEvaluationListeners(found -> found.index() + 1 >= maxResults
+						? EvaluationContinuation.ABORT : EvaluationContinuation.CONTINUE);
+	}
+
+	void extract(JsonNode datum, Record record) {
+		for (Map.Entry<String, JsonPath> entry : paths.entrySet()) {
+			final Object found = entry.getValue().read(datum, configuration);
+			if (found instanceof JsonNode) { // always a list
+				for (JsonNode value : (JsonNode) found) {
+					JsonPaths.resolve(value, record, entry.getKey(), flatten);
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,364 @@
+/*
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.akalaszi.morphlineaddons;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.kitesdk.morphline.api.Record;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+/**
+ * The paths of extractJsonPathsFromField: each output field has a list of
+ * steps, a step is an object field name or ARRAY_TOKEN for the elements of
+ * an array.
+ *
+ * The paths are compiled into a trie, so the steps shared by several paths
+ * are taken once. The trie is evaluated either on a JsonNode tree, or on the
+ * tokens of a JsonParser. The streaming evaluation reads the document once,
+ * skips the subtrees no path goes into, and materializes only the values
+ * under the paths. Both give the same values in the same order, except for
+ * objects with duplicate keys: the tree keeps the last value only, the stream
+ * every value.
+ *
+ * Immutable, thread-safe.
+ */
+final class JsonPaths {
+	static final String ARRAY_TOKEN = "[]";
+
+	/**
+	 * Shared by all the commands, leaves the streams it reads open.
+	 */
+	static final ObjectReader READER = new ObjectMapper().configure(JsonParser.Feature.AUTO_CLOSE_SOURCE, false)
+			.reader();
+
+	private final PathNode root = new PathNode();
+	private final boolean flatten;
+
+	JsonPaths(Map<String, List<String>> stepMap, boolean flatten) {
+		for (Map.Entry<String, List<String>> entry : stepMap.entrySet()) {
+			PathNode node = root;
+			for (String step : entry.getValue()) {
+				node = node.child(step);
+			}
+			node.results.add(entry.getKey());
+		}
+		this.flatten = flatten;
+	}
+
+	/**
+	 * Splits a path like /orig/labels[]/id into its steps.
+	 */
+	static List<String> steps(String path) {
+		List<String> steps = new ArrayList<>();
+		if (path.startsWith("/")) {
+			path = path.substring(1);
+		}
+		if (path.endsWith("/")) {
+			path = path.substring(0, path.length() - 1);
+		}
+		path = path.trim();
+		for (String step : path.split("/")) {
+			step = step.trim();
+			if (step.length() > ARRAY_TOKEN.length() && step.endsWith(ARRAY_TOKEN)) {
+				step = step.substring(0, step.length() - ARRAY_TOKEN.length());
+				steps.add(normalize(step));
+				steps.add(ARRAY_TOKEN);
+			} else {
+				steps.add(normalize(step));
+			}
+		}
+		return Collections.unmodifiableList(steps);
+	}
+
+	private static String normalize(String step) { // for faster subsequent query
+													// performance
+		return ARRAY_TOKEN.equals(step) ? ARRAY_TOKEN : step;
+	}
+
+	void extract(JsonNode datum, Record record) {
+		walk(datum, root, record, true);
+	}
+
+	/**
+	 * Evaluates the paths on the next JSON value of the parser.
+	 */
+	void extract(JsonParser parser, Record record) throws IOException {
+		if (parser.nextToken() != null) {
+			stream(parser, root, record, true);
+		}
+	}
+
+	/**
+	 * A node of the path trie, reached by the steps from the root to it.
+	 * Paths sharing a prefix share the nodes of the prefix, so the document is
+	 * walked once for all of them.
+	 */
+	private static final class PathNode {
+		/** the fields whose path ends here */
+		private final List<String> results = new ArrayList<>(1);
+		private final Map<String, PathNode> children = new LinkedHashMap<>();
+		/** the ARRAY_TOKEN step: the results are the array, the children apply to its elements */
+		private PathNode elements;
+
+		PathNode child(String step) {
+			if (ARRAY_TOKEN == step) {
+				if (elements == null) {
+					elements = new PathNode();
+				}
+				return elements;
+			}
+			return children.computeIfAbsent(step, s -> new PathNode());
+		}
+
+		boolean hasChildren() {
+			return !children.isEmpty() || elements != null;
+		}
+	}
+
+	/**
+	 * Resolves the fields of the node on the datum (if own), and goes on into
+	 * the datum with the children of the node.
+	 */
+	private void walk(JsonNode datum, PathNode node, Record record, boolean own) {
+		if (own) {
+			for (String fieldName : node.results) {
+				resolve(datum, record, fieldName, flatten);
+			}
+		}
+		if (datum.isObject()) {
+			for (Map.Entry<String, PathNode> child : node.children.entrySet()) {
+				JsonNode value = datum.get(child.getKey());
+				if (value != null) {
+					walk(value, child.getValue(), record, true);
+				}
+			}
+		} else if (datum.isArray() && node.elements != null) {
+			for (String fieldName : node.elements.results) {
+				resolve(datum, record, fieldName, flatten);
+			}
+			if (node.elements.hasChildren()) {
+				Iterator<JsonNode> iter = datum.elements();
+				while (iter.hasNext()) {
+					walk(iter.next(), node.elements, record, false);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The streaming equivalent of walk(), on the current value of the parser.
+	 */
+	private void stream(JsonParser parser, PathNode node, Record record, boolean own) throws IOException {
+		final JsonToken token = parser.currentToken();
+		final boolean isArray = token == JsonToken.START_ARRAY && node.elements != null;
+		final boolean descend = (token == JsonToken.START_OBJECT && !node.children.isEmpty())
+				|| (isArray && node.elements.hasChildren());
+		List<String> results = own ? node.results : Collections.<String>emptyList();
+		if (isArray && !node.elements.results.isEmpty()) {
+			results = new ArrayList<>(results);
+			results.addAll(node.elements.results);
+		}
+
+		if (!results.isEmpty()) {
+			if (descend || (!flatten && token.isStructStart()) || token == JsonToken.VALUE_EMBEDDED_OBJECT) {
+				// the value itself is needed
+				walk(READER.readTree(parser), node, record, own);
+			} else if (flatten) {
+				List<List> lists = new ArrayList<>(results.size());
+				for (String fieldName : results) {
+					lists.add(record.get(fieldName));
+				}
+				flatten(parser, lists);
+			} else {
+				Object value = scalar(parser);
+				if (value != null) {
+					for (String fieldName : results) {
+						record.put(fieldName, value);
+					}
+				}
+			}
+		} else if (!descend) {
+			parser.skipChildren();
+		} else if (token == JsonToken.START_OBJECT) {
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				PathNode child = node.children.get(parser.getCurrentName());
+				parser.nextToken();
+				if (child == null) {
+					parser.skipChildren();
+				} else {
+					stream(parser, child, record, true);
+				}
+			}
+		} else {
+			while (parser.nextToken() != JsonToken.END_ARRAY) {
+				stream(parser, node.elements, record, false);
+			}
+		}
+	}
+
+	/**
+	 * Adds the primitives of the current value to every list, in the order
+	 * flatten(JsonNode, List) would.
+	 */
+	@SuppressWarnings("unchecked")
+	private static void flatten(JsonParser parser, List<List> lists) throws IOException {
+		JsonToken token = parser.currentToken();
+		if (token == JsonToken.START_OBJECT) {
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				parser.nextToken();
+				flatten(parser, lists);
+			}
+		} else if (token == JsonToken.START_ARRAY) {
+			while (parser.nextToken() != JsonToken.END_ARRAY) {
+				flatten(parser, lists);
+			}
+		} else {
+			Object value = scalar(parser);
+			if (value != null) {
+				for (List list : lists) {
+					list.add(value);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The value resolve(JsonNode, ...) gives for the JsonNode the current
+	 * scalar token would be read into, null for a JSON null.
+	 */
+	private static Object scalar(JsonParser parser) throws IOException {
+		switch (parser.currentToken()) {
+		case VALUE_STRING:
+			return parser.getText();
+		case VALUE_TRUE:
+			return Boolean.TRUE;
+		case VALUE_FALSE:
+			return Boolean.FALSE;
+		case VALUE_NUMBER_INT:
+		case VALUE_NUMBER_FLOAT:
+			switch (parser.getNumberType()) {
+			case INT:
+				return parser.getIntValue();
+			case LONG:
+				return parser.getLongValue();
+			case BIG_INTEGER:
+				return parser.getBigIntegerValue();
+			case FLOAT:
+				return parser.getFloatValue();
+			case BIG_DECIMAL:
+				return parser.getDecimalValue();
+			default:
+				return parser.getDoubleValue();
+			}
+		case VALUE_NULL:
+			return null;
+		default:
+			return READER.readTree(parser).toString();
+		}
+	}
+
+	/**
+	 * Adds the value of the datum to the field, flattened into its primitives
+	 * if flatten.
+	 */
+	static void resolve(JsonNode datum, Record record, String fieldName, boolean flatten) {
+		if (datum == null) {
+			return;
+		}
+
+		if (flatten) {
+			flatten(datum, record.get(fieldName));
+			return;
+		}
+
+		if (datum.isObject() || datum.isArray()) {
+			record.put(fieldName, datum);
+		} else if (datum.isTextual()) {
+			record.put(fieldName, datum.asText());
+		} else if (datum.isBoolean()) {
+			record.put(fieldName, datum.asBoolean());
+		} else if (datum.isInt()) {
+			record.put(fieldName, datum.asInt());
+		} else if (datum.isLong()) {
+			record.put(fieldName, datum.asLong());
+		} else if (datum.isShort()) {
+			record.put(fieldName, datum.shortValue());
+		} else if (datum.isDouble()) {
+			record.put(fieldName, datum.asDouble());
+		} else if (datum.isFloat()) {
+			record.put(fieldName, datum.floatValue());
+		} else if (datum.isBigInteger()) {
+			record.put(fieldName, datum.bigIntegerValue());
+		} else if (datum.isBigDecimal()) {
+			record.put(fieldName, datum.decimalValue());
+		} else if (datum.isNull()) {
+			; // ignore
+		} else {
+			record.put(fieldName, datum.toString());
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void flatten(JsonNode datum, List list) {
+		if (datum == null) {
+			return;
+		}
+
+		if (datum.isObject()) {
+			for (JsonNode child : datum) {
+				flatten(child, list);
+			}
+		} else if (datum.isArray()) {
+			Iterator<JsonNode> iter = datum.elements();
+			while (iter.hasNext()) {
+				flatten(iter.next(), list);
+			}
+		} else if (datum.isTextual()) {
+			list.add(datum.asText());
+		} else if (datum.isBoolean()) {
+			list.add(datum.asBoolean());
+		} else if (datum.isInt()) {
+			list.add(datum.asInt());
+		} else if (datum.isLong()) {
+			list.add(datum.asLong());
+		} else if (datum.isShort()) {
+			list.add(datum.shortValue());
+		} else if (datum.isDouble()) {
+			list.add(datum.asDouble());
+		} else if (datum.isFloat()) {
+			list.add(datum.floatValue());
+		} else if (datum.isBigInteger()) {
+			list.add(datum.bigIntegerValue());
+		} else if (datum.isBigDecimal()) {
+			list.add(datum.decimalValue());
+		} else if (datum.isNull()) {
+			; // ignore
+		} else {
+			list.add(datum.toString());
+		}
+	}
+
+}
@@ -0,0 +1,175 @@
+/*
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.akalaszi.morphlineaddons;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.kitesdk.morphline.api.MorphlineRuntimeException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Counter;
+
+/**
+ * Limits the work a regex may do on a value. The regex reads the value
+ * through a CharSequence counting the characters read, and giving up once
+ * maxSteps characters have been read or timeoutMillis has passed (0 disables
+ * either limit), or the thread has been interrupted. A backtracking regex
+ * reads characters over and over, so the count follows its work closely. The
+ * policy tells what the value is taken for then: a match, a non-match, or an
+ * error failing the record.
+ *
+ * Thread-safe.
+ */
+final class RegexBudget {
+	private static final Logger LOGGER = LoggerFactory.getLogger(RegexBudget.class);
+	private static final int CLOCK_CHECK_INTERVAL = 1024;
+	private static final int MAX_LOGGED_VALUE_LENGTH = 200;
+
+	enum Policy {
+		MATCH, NON_MATCH, FAIL
+	}
+
+	private final long maxSteps;
+	private final long timeoutNanos;
+	private final Policy policy;
+	private final String field;
+	private final Counter exceeded;
+
+	RegexBudget(long maxSteps, long timeoutMillis, Policy policy, String field, Counter exceeded) {
+		this.maxSteps = maxSteps <= 0 ? Long.MAX_VALUE : maxSteps;
+		this.timeoutNanos = timeoutMillis <= 0 ? 0 : TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		this.policy = policy;
+		this.field = field;
+		this.exceeded = exceeded;
+	}
+
+	static Policy parsePolicy(String policy) {
+		switch (policy) {
+		case "match":
+			return Policy.MATCH;
+		case "nonMatch":
+			return Policy.NON_MATCH;
+		case "fail":
+			return Policy.FAIL;
+		default:
+			throw new IllegalArgumentException("Unknown regex timeout policy, use match, nonMatch or fail: " + policy);
+		}
+	}
+
+	CharSequence wrap(CharSequence value) {
+		return new BudgetedCharSequence(value, new Steps(maxSteps, timeoutNanos));
+	}
+
+	/**
+	 * Called when the regex ran out of budget, returns whether the value is
+	 * taken for a match.
+	 */
+	boolean onExceeded(Pattern pattern, CharSequence value) {
+		exceeded.inc();
+		LOGGER.warn("regex >{}< on field {} exceeded its budget, value: >{}<", pattern, field,
+				value.length() > MAX_LOGGED_VALUE_LENGTH ? value.subSequence(0, MAX_LOGGED_VALUE_LENGTH) + "..." : value);
+		switch (policy) {
+		case MATCH:
+			return true;
+		case NON_MATCH:
+			return false;
+		default:
+			throw new MorphlineRuntimeException(
+					"Regex " + pattern + " on field " + field + " exceeded its budget");
+		}
+	}
+
+	/**
+	 * Thrown from charAt() to abort the regex. Has no stack trace, it is
+	 * always caught.
+	 */
+	static final class ExceededException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		ExceededException() {
+			super(null, null, false, false);
+		}
+	}
+
+	/**
+	 * The budget of a single match, shared by the subsequences.
+	 */
+	private static final class Steps {
+		private final long deadline;
+		private final boolean timed;
+		private long remaining;
+
+		Steps(long maxSteps, long timeoutNanos) {
+			this.remaining = maxSteps;
+			this.timed = timeoutNanos > 0;
+			this.deadline = timed ? System.nanoTime() + timeoutNanos : 0;
+		}
+
+		void step() {
+			if (--remaining < 0) {
+				throw new ExceededException();
+			}
+			if (remaining % CLOCK_CHECK_INTERVAL == 0
+					&& ((timed && System.nanoTime() > deadline) || Thread.currentThread().isInterrupted())) {
+				throw new ExceededException();
+			}
+		}
+	}
+
+	private static final class BudgetedCharSequence implements CharSequence {
+		private final CharSequence value;
+		private final int offset;
+		private final int length;
+		private final Steps steps;
+
+		BudgetedCharSequence(CharSequence value, Steps steps) {
+			this(value, 0, value.length(), steps);
+		}
+
+		private BudgetedCharSequence(CharSequence value, int offset, int length, Steps steps) {
+			this.value = value;
+			this.offset = offset;
+			this.length = length;
+			this.steps = steps;
+		}
+
+		@Override
+		public int length() {
+			return length;
+		}
+
+		@Override
+		public char charAt(int index) {
+			steps.step();
+			return value.charAt(offset + index);
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			if (start < 0 || end > length || start > end) {
+				throw new IndexOutOfBoundsException("start " + start + ", end " + end + ", length " + length);
+			}
+			return new BudgetedCharSequence(value, offset + start, end - start, steps);
+		}
+
+		@Override
+		public String toString() {
+			return value.subSequence(offset, offset + length).toString();
+		}
+	}
+
+}
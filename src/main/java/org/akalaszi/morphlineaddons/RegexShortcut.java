@@ -0,0 +1,454 @@
+/*
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.akalaszi.morphlineaddons;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * String operations doing the job of the simplest regexes, with the result
+ * of {@link String#matches(String)}. Recognized, with an optional leading ^
+ * and trailing $:
+ * 
+ * <pre>
+ * lit            equals
+ * a|b|c, (a|b)   one of the literals
+ * lit.*          startsWith
+ * .*lit          endsWith
+ * .*lit.*        contains
+ * .*             anything
+ * (?!lit).*      does not start with lit
+ * .*(?&lt;!lit)  does not end with lit, .+ also requires one char
+ * </pre>
+ * 
+ * A literal is made of plain characters and backslash escaped punctuation.
+ * As . does not match line terminators, values containing one are left to
+ * the regex by the patterns having a dot.
+ */
+final class RegexShortcut {
+	enum Kind {
+		EQUALS, ANY_OF, PREFIX, SUFFIX, CONTAINS, ANY, NOT_PREFIX, NOT_SUFFIX
+	}
+
+	private static final String METACHARACTERS = "\\^$.|?*+()[]{}";
+
+	private final Kind kind;
+	private final String literal;
+	private final Set<String> literals;
+	private final int minLength;
+	private final int maxLiteralLength;
+
+	private RegexShortcut(Kind kind, String literal, Set<String> literals, int minLength) {
+		this.kind = kind;
+		this.literal = literal;
+		this.literals = literals;
+		this.minLength = minLength;
+		this.maxLiteralLength = maxLength(literals);
+	}
+
+	/**
+	 * Returns null if the regex is not one of the recognized shapes.
+	 */
+	static RegexShortcut analyze(String regex) {
+		List<Token> tokens = new Tokenizer(regex).tokenize();
+		if (tokens == null) {
+			return null;
+		}
+		String shape = shapeOf(tokens);
+		switch (shape) {
+		case "":
+			return new RegexShortcut(Kind.EQUALS, "", null, 0);
+		case "L":
+			return new RegexShortcut(Kind.EQUALS, tokens.get(0).literal(), null, 0);
+		case "A":
+			return new RegexShortcut(Kind.ANY_OF, null, tokens.get(0).literals, 0);
+		case "L*":
+			return new RegexShortcut(Kind.PREFIX, tokens.get(0).literal(), null, 0);
+		case "*L":
+			return new RegexShortcut(Kind.SUFFIX, tokens.get(1).literal(), null, 0);
+		case "*L*":
+			return new RegexShortcut(Kind.CONTAINS, tokens.get(1).literal(), null, 0);
+		case "*":
+			return new RegexShortcut(Kind.ANY, null, null, 0);
+		case "!*":
+			return new RegexShortcut(Kind.NOT_PREFIX, null, tokens.get(0).literals, 0);
+		case "*<":
+			return new RegexShortcut(Kind.NOT_SUFFIX, null, tokens.get(1).literals, 0);
+		case "+<":
+			return new RegexShortcut(Kind.NOT_SUFFIX, null, tokens.get(1).literals, 1);
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Returns null if the regex has to decide.
+	 */
+	Boolean matches(CharSequence value) {
+		switch (kind) {
+		case EQUALS:
+			return literal.contentEquals(value);
+		case ANY_OF:
+			return value.length() <= maxLiteralLength && literals.contains(value.toString());
+		default:
+			break;
+		}
+		if (hasLineTerminator(value)) {
+			return null;
+		}
+		switch (kind) {
+		case PREFIX:
+			return startsWith(value, literal);
+		case SUFFIX:
+			return endsWith(value, literal);
+		case CONTAINS:
+			return indexOf(value, literal) >= 0;
+		case ANY:
+			return Boolean.TRUE;
+		case NOT_PREFIX:
+			for (String l : literals) {
+				if (startsWith(value, l)) {
+					return Boolean.FALSE;
+				}
+			}
+			return Boolean.TRUE;
+		case NOT_SUFFIX:
+			if (value.length() < minLength) {
+				return Boolean.FALSE;
+			}
+			for (String l : literals) {
+				if (endsWith(value, l)) {
+					return Boolean.FALSE;
+				}
+			}
+			return Boolean.TRUE;
+		default:
+			throw new IllegalStateException(kind.name());
+		}
+	}
+
+	Kind kind() {
+		return kind;
+	}
+
+	/**
+	 * The literals of EQUALS and ANY_OF, the literal of the other kinds
+	 * having one.
+	 */
+	Set<String> literals() {
+		return literals != null ? literals : Collections.singleton(literal);
+	}
+
+	@Override
+	public String toString() {
+		return kind + " " + (literal != null ? literal : literals);
+	}
+
+	static boolean startsWith(CharSequence value, String prefix) {
+		if (value instanceof String) {
+			return ((String) value).startsWith(prefix);
+		}
+		return value.length() >= prefix.length() && regionMatches(value, 0, prefix);
+	}
+
+	static boolean endsWith(CharSequence value, String suffix) {
+		if (value instanceof String) {
+			return ((String) value).endsWith(suffix);
+		}
+		return value.length() >= suffix.length() && regionMatches(value, value.length() - suffix.length(), suffix);
+	}
+
+	private static int indexOf(CharSequence value, String literal) {
+		if (value instanceof String) {
+			return ((String) value).indexOf(literal);
+		}
+		final int last = value.length() - literal.length();
+		for (int i = 0; i <= last; i++) {
+			if (regionMatches(value, i, literal)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static boolean regionMatches(CharSequence value, int offset, String literal) {
+		for (int i = 0; i < literal.length(); i++) {
+			if (value.charAt(offset + i) != literal.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int maxLength(Set<String> literals) {
+		int max = 0;
+		if (literals != null) {
+			for (String l : literals) {
+				max = Math.max(max, l.length());
+			}
+		}
+		return max;
+	}
+
+	static boolean hasLineTerminator(CharSequence value) {
+		for (int i = 0; i < value.length(); i++) {
+			switch (value.charAt(i)) {
+			case '\n':
+			case '\r':
+			case '\u0085':
+			case '\u2028':
+			case '\u2029':
+				return true;
+			default:
+				break;
+			}
+		}
+		return false;
+	}
+
+	private static String shapeOf(List<Token> tokens) {
+		StringBuilder shape = new StringBuilder(tokens.size());
+		for (Token token : tokens) {
+			shape.append(token.type);
+		}
+		return shape.toString();
+	}
+
+	private static final class Token {
+		/**
+		 * L literal, A alternation, * .*, + .+, ! (?!...), < (?<!...)
+		 */
+		private final char type;
+		private final Set<String> literals;
+
+		Token(char type, Set<String> literals) {
+			this.type = type;
+			this.literals = literals;
+		}
+
+		String literal() {
+			return literals.iterator().next();
+		}
+	}
+
+	private static final class Tokenizer {
+		private final String regex;
+		private int pos;
+		private int end;
+
+		Tokenizer(String regex) {
+			this.regex = regex;
+			this.end = regex.length();
+		}
+
+		/**
+		 * Returns null on anything not recognized.
+		 */
+		List<Token> tokenize() {
+			// matches() has to match the whole value: leading ^ and trailing $ are no-ops
+			if (pos < end && regex.charAt(pos) == '^') {
+				pos++;
+			}
+			if (end > pos && regex.charAt(end - 1) == '$' && !isEscaped(end - 1)) {
+				end--;
+			}
+			if (indexOfTopLevelBar() >= 0) {
+				Set<String> alternatives = alternatives(end);
+				return alternatives == null || pos != end ? null
+						: Collections.singletonList(new Token('A', alternatives));
+			}
+			List<Token> tokens = new ArrayList<>();
+			while (pos < end) {
+				Token token = next();
+				if (token == null) {
+					return null;
+				}
+				tokens.add(token);
+			}
+			return tokens;
+		}
+
+		private Token next() {
+			char c = regex.charAt(pos);
+			if (c == '.') {
+				if (pos + 1 >= end || (regex.charAt(pos + 1) != '*' && regex.charAt(pos + 1) != '+')) {
+					return null;
+				}
+				char quantifier = regex.charAt(pos + 1);
+				pos += 2;
+				// lazy and possessive quantifiers are not handled
+				return isQuantifier(pos) ? null : new Token(quantifier, null);
+			}
+			if (c == '(') {
+				return group();
+			}
+			String literal = literal(end);
+			if (literal == null || literal.isEmpty() || isQuantifier(pos)) {
+				return null;
+			}
+			return new Token('L', Collections.singleton(literal));
+		}
+
+		/**
+		 * (a|b), (?:a|b), (?!a|b), (?<!a|b), lookarounds may have an inner
+		 * group: (?!(a)).
+		 */
+		private Token group() {
+			final int close = closingParenthesis(pos);
+			if (close < 0 || close >= end) {
+				return null;
+			}
+			char type = 'A';
+			if (regex.startsWith("(?!", pos)) {
+				type = '!';
+				pos += 3;
+			} else if (regex.startsWith("(?<!", pos)) {
+				type = '<';
+				pos += 4;
+			} else if (regex.startsWith("(?:", pos)) {
+				pos += 3;
+			} else if (regex.startsWith("(?", pos)) {
+				return null; // flags, lookahead, named groups
+			} else {
+				pos++;
+			}
+			Set<String> alternatives;
+			if (type != 'A' && regex.charAt(pos) == '(' && closingParenthesis(pos) == close - 1) {
+				Token inner = group();
+				if (inner == null || inner.type != 'A') {
+					return null;
+				}
+				alternatives = inner.literals;
+			} else {
+				alternatives = alternatives(close);
+			}
+			if (alternatives == null || pos != close) {
+				return null;
+			}
+			pos++;
+			if (isQuantifier(pos)) {
+				return null;
+			}
+			return new Token(type, alternatives);
+		}
+
+		private Set<String> alternatives(int limit) {
+			Set<String> alternatives = new HashSet<>();
+			while (true) {
+				String literal = literal(limit);
+				if (literal == null || hasSurrogateAtEdge(literal)) {
+					return null;
+				}
+				alternatives.add(literal);
+				if (pos < limit && regex.charAt(pos) == '|') {
+					pos++;
+				} else {
+					return alternatives;
+				}
+			}
+		}
+
+		/**
+		 * Reads plain characters and escaped punctuation up to the next
+		 * metacharacter. Returns null on an escape that is not a literal.
+		 */
+		private String literal(int limit) {
+			StringBuilder literal = new StringBuilder();
+			while (pos < limit) {
+				char c = regex.charAt(pos);
+				if (c == '\\') {
+					if (pos + 1 >= limit || Character.isLetterOrDigit(regex.charAt(pos + 1))
+							|| regex.charAt(pos + 1) > 127) {
+						return null; // \d, \Q, \1, ...
+					}
+					literal.append(regex.charAt(pos + 1));
+					pos += 2;
+				} else if (METACHARACTERS.indexOf(c) >= 0) {
+					break;
+				} else {
+					literal.append(c);
+					pos++;
+				}
+				if (isQuantifier(pos)) {
+					return null; // applies to the last character only
+				}
+			}
+			return hasSurrogateAtEdge(literal) ? null : literal.toString();
+		}
+
+		private boolean isQuantifier(int i) {
+			if (i >= end) {
+				return false;
+			}
+			char c = regex.charAt(i);
+			return c == '*' || c == '+' || c == '?' || c == '{';
+		}
+
+		private boolean isEscaped(int i) {
+			int backslashes = 0;
+			while (i - backslashes - 1 >= 0 && regex.charAt(i - backslashes - 1) == '\\') {
+				backslashes++;
+			}
+			return backslashes % 2 == 1;
+		}
+
+		private int indexOfTopLevelBar() {
+			int depth = 0;
+			for (int i = pos; i < end; i++) {
+				char c = regex.charAt(i);
+				if (c == '\\') {
+					i++;
+				} else if (c == '(') {
+					depth++;
+				} else if (c == ')') {
+					depth--;
+				} else if (c == '|' && depth == 0) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		private int closingParenthesis(int open) {
+			int depth = 0;
+			for (int i = open; i < end; i++) {
+				char c = regex.charAt(i);
+				if (c == '\\') {
+					i++;
+				} else if (c == '[') {
+					return -1; // a ) may be in a character class
+				} else if (c == '(') {
+					depth++;
+				} else if (c == ')' && --depth == 0) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * The regex matches whole code points, a literal starting or ending
+		 * with half of a surrogate pair may behave differently.
+		 */
+		private static boolean hasSurrogateAtEdge(CharSequence literal) {
+			return literal.length() > 0 && (Character.isSurrogate(literal.charAt(0))
+					|| Character.isSurrogate(literal.charAt(literal.length() - 1)));
+		}
+	}
+
+}
@@ -0,0 +1,225 @@
+/*
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.akalaszi.morphlineaddons;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import org.kitesdk.morphline.api.MorphlineContext;
+import org.kitesdk.morphline.api.MorphlineRuntimeException;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * The values extracted from html pages by htmlProcessor and stripHtmlTags,
+ * shared by all the commands of a MorphlineContext that enable it, so a page
+ * seen again is not parsed again. The key is the 128 bit murmur3 hash of the
+ * namespace of the command (e.g. its selectors) and of the content, the
+ * content itself is not kept.
+ *
+ * The cache holds values of at most MAX_BYTES estimated bytes, the least
+ * recently used ones are evicted first. The limit can be changed with the
+ * org.akalaszi.morphlineaddons.ResultCache.maxBytes system property. With
+ * org.akalaszi.morphlineaddons.ResultCache.offHeap the values are encoded
+ * into direct buffers, only the keys and the buffer objects stay on the heap.
+ * The memory of an evicted buffer is freed when the buffer is collected.
+ *
+ * Hits, misses and evictions are counted in the resultCache.hits,
+ * resultCache.misses and resultCache.evictions meters of the context, the
+ * resultCache.hitRatio gauge gives the hits of all the lookups so far.
+ *
+ * Thread-safe.
+ */
+final class ResultCache {
+	private static final long MAX_BYTES = Long.getLong(ResultCache.class.getName() + ".maxBytes", 64L << 20);
+	private static final boolean OFF_HEAP = Boolean.getBoolean(ResultCache.class.getName() + ".offHeap");
+	private static final Map<MorphlineContext, ResultCache> CACHES = new WeakHashMap<>(); // guarded by itself
+	private static final HashFunction HASH = Hashing.murmur3_128();
+	/** the estimated size of a key and a cache entry */
+	private static final int ENTRY_BYTES = 96;
+	private static final int STRING_BYTES = 40;
+
+	private final Cache<HashCode, Object> cache;
+	private final boolean offHeap;
+	private final Meter hits;
+	private final Meter misses;
+
+	private ResultCache(MetricRegistry metrics, long maxBytes, boolean offHeap) {
+		this.offHeap = offHeap;
+		this.hits = metrics.meter(MetricRegistry.name("resultCache", "hits"));
+		this.misses = metrics.meter(MetricRegistry.name("resultCache", "misses"));
+		final Meter evictions = metrics.meter(MetricRegistry.name("resultCache", "evictions"));
+		this.cache = CacheBuilder.newBuilder().maximumWeight(maxBytes).weigher(ResultCache::weigh).removalListener(n -> {
+			if (n.wasEvicted()) {
+				evictions.mark();
+			}
+		}).build();
+		final String hitRatio = MetricRegistry.name("resultCache", "hitRatio");
+		metrics.remove(hitRatio);
+		metrics.register(hitRatio, (Gauge<Double>) () -> {
+			final long lookups = hits.getCount() + misses.getCount();
+			return lookups == 0 ? 0.0 : (double) hits.getCount() / lookups;
+		});
+	}
+
+	static ResultCache of(MorphlineContext context) {
+		synchronized (CACHES) {
+			ResultCache cache = CACHES.get(context);
+			if (cache == null) {
+				cache = new ResultCache(context.getMetricRegistry(), MAX_BYTES, OFF_HEAP);
+				CACHES.put(context, cache);
+			}
+			return cache;
+		}
+	}
+
+	/**
+	 * A cache of its own, for tests.
+	 */
+	static ResultCache create(MetricRegistry metrics, long maxBytes, boolean offHeap) {
+		return new ResultCache(metrics, maxBytes, offHeap);
+	}
+
+	/**
+	 * The key of a String or byte[] content in the namespace, all other
+	 * contents give the same key. The same text as a String and as bytes gives
+	 * different keys, as they may be parsed differently.
+	 */
+	static HashCode key(String namespace, Object content) {
+		final Hasher hasher = HASH.newHasher().putUnencodedChars(namespace).putChar('\0');
+		if (content instanceof byte[]) {
+			hasher.putByte((byte) 'b').putBytes((byte[]) content);
+		} else if (content instanceof String) {
+			hasher.putByte((byte) 's').putUnencodedChars((String) content);
+		} else {
+			hasher.putByte((byte) 'o');
+		}
+		return hasher.hash();
+	}
+
+	/**
+	 * Returns the values of the key, extracting them if needed. Exceptions of
+	 * the extractor are passed on as they are, runtime exceptions unwrapped.
+	 */
+	List<List<String>> get(HashCode key, Callable<List<List<String>>> extractor) throws Exception {
+		final boolean[] extracted = new boolean[1];
+		try {
+			final Object value = cache.get(key, () -> {
+				extracted[0] = true;
+				final List<List<String>> values = extractor.call();
+				return offHeap ? encode(values) : copy(values);
+			});
+			(extracted[0] ? misses : hits).mark();
+			return value instanceof ByteBuffer ? decode((ByteBuffer) value) : copy(cast(value));
+		} catch (UncheckedExecutionException | ExecutionException e) {
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+			throw new MorphlineRuntimeException(e.getCause());
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<List<String>> cast(Object value) {
+		return (List<List<String>>) value;
+	}
+
+	/**
+	 * The lists are copied into and out of the cache, as the records may
+	 * change them.
+	 */
+	private static List<List<String>> copy(List<List<String>> values) {
+		final List<List<String>> copy = new ArrayList<>(values.size());
+		for (List<String> list : values) {
+			copy.add(new ArrayList<>(list));
+		}
+		return copy;
+	}
+
+	private static int weigh(HashCode key, Object value) {
+		if (value instanceof ByteBuffer) {
+			return ENTRY_BYTES + ((ByteBuffer) value).capacity();
+		}
+		long bytes = ENTRY_BYTES;
+		for (List<String> list : cast(value)) {
+			bytes += STRING_BYTES;
+			for (String s : list) {
+				bytes += STRING_BYTES + 2L * s.length();
+			}
+		}
+		return (int) Math.min(bytes, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * The number of lists, then for every list the number of strings and for
+	 * every string its length and its chars, so any string comes back as it
+	 * was.
+	 */
+	private static ByteBuffer encode(List<List<String>> values) {
+		int size = 4;
+		for (List<String> list : values) {
+			size += 4;
+			for (String s : list) {
+				size += 4 + 2 * s.length();
+			}
+		}
+		final ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+		buffer.putInt(values.size());
+		for (List<String> list : values) {
+			buffer.putInt(list.size());
+			for (String s : list) {
+				buffer.putInt(s.length());
+				for (int i = 0; i < s.length(); i++) {
+					buffer.putChar(s.charAt(i));
+				}
+			}
+		}
+		buffer.flip();
+		return buffer.asReadOnlyBuffer();
+	}
+
+	private static List<List<String>> decode(ByteBuffer encoded) {
+		final ByteBuffer buffer = encoded.duplicate();
+		final int lists = buffer.getInt();
+		final List<List<String>> values = new ArrayList<>(lists);
+		for (int i = 0; i < lists; i++) {
+			final int strings = buffer.getInt();
+			final List<String> list = new ArrayList<>(strings);
+			for (int j = 0; j < strings; j++) {
+				final char[] chars = new char[buffer.getInt()];
+				buffer.asCharBuffer().get(chars);
+				buffer.position(buffer.position() + 2 * chars.length);
+				list.add(new String(chars));
+			}
+			values.add(list);
+		}
+		return values;
+	}
+
+}
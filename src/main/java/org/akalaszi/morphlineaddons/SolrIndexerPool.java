@@ -0,0 +1,328 @@
+/*
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.akalaszi.morphlineaddons;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+import org.kitesdk.morphline.api.MorphlineRuntimeException;
+import org.kitesdk.morphline.api.Record;
+import org.kitesdk.morphline.solr.SolrIndexer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded pool of open {@link SolrIndexer}s keyed by collection name, shared
+ * by all ingest threads. The least recently used indexer is committed and
+ * shut down when more than maxOpenCollections collections are open, or when
+ * it has not been used for idleTimeoutMillis (0 disables the idle timeout).
+ *
+ * Lookups of already open collections do not lock. A new collection is
+ * opened lazily by the first thread asking for it, other threads asking for
+ * the same collection wait for it, threads working on other collections are
+ * not blocked.
+ *
+ * Evictions and lingering batches are handled on the thread of an unrelated
+ * record. Their failures do not fail that record: they are kept and thrown at
+ * the next record of their own collection or by {@link #throwFailures()},
+ * whichever comes first, so documents are not lost silently.
+ */
+final class SolrIndexerPool {
+	private static final Logger LOGGER = LoggerFactory.getLogger(SolrIndexerPool.class);
+	private static final long MAINTENANCE_INTERVAL_MILLIS = 1000;
+
+	private final ConcurrentHashMap<String, PooledIndexer> indexers = new ConcurrentHashMap<>();
+	private final Function<String, SolrIndexer> factory;
+	private final int maxOpenCollections;
+	private final long idleTimeoutMillis;
+	private final ConcurrentHashMap<String, RuntimeException> failures = new ConcurrentHashMap<>();
+	private final LongSupplier clock;
+	private final AtomicLong lastMaintenance;
+
+	SolrIndexerPool(Function<String, SolrIndexer> factory, int maxOpenCollections, long idleTimeoutMillis) {
+		this(factory, maxOpenCollections, idleTimeoutMillis, System::currentTimeMillis);
+	}
+
+	/**
+	 * @param clock
+	 *            the current time in milliseconds, lets tests control it
+	 */
+	SolrIndexerPool(Function<String, SolrIndexer> factory, int maxOpenCollections, long idleTimeoutMillis,
+			LongSupplier clock) {
+		this.factory = factory;
+		this.maxOpenCollections = maxOpenCollections;
+		this.idleTimeoutMillis = idleTimeoutMillis;
+		this.clock = clock;
+		this.lastMaintenance = new AtomicLong(clock.getAsLong());
+	}
+
+	/**
+	 * Sends the record to the indexer of the collection. Retries with a fresh
+	 * indexer if the one obtained has been evicted by an other thread in the
+	 * meantime.
+	 */
+	void send(String collection, Record record, Set<String> excludedFields) {
+		while (!obtain(collection).trySendToSolr(record, excludedFields)) {
+			LOGGER.debug("collection {} has been evicted concurrently, reopening", collection);
+		}
+	}
+
+	SolrIndexer obtain(String collection) {
+		final long now = clock.getAsLong();
+		maintain(now);
+
+		final RuntimeException failure = failures.remove(collection);
+		if (failure != null) {
+			throw failure;
+		}
+		while (true) {
+			PooledIndexer pooled = indexers.get(collection);
+			if (pooled == null) {
+				pooled = indexers.computeIfAbsent(collection, c -> new PooledIndexer(c, now));
+			}
+			pooled.lastAccess = now;
+			final SolrIndexer indexer = pooled.indexer;
+			if (indexer != null) {
+				return indexer;
+			}
+			if (open(pooled)) {
+				return pooled.indexer;
+			}
+			LOGGER.debug("collection {} has been evicted before it was opened, retrying", collection);
+		}
+	}
+
+	/**
+	 * Throws the failures of evictions and flushes on other threads not
+	 * reported yet, e.g. before a commit, which must not succeed over
+	 * documents that were lost.
+	 */
+	void throwFailures() {
+		MorphlineRuntimeException ex = null;
+		for (String collection : failures.keySet()) {
+			final RuntimeException failure = failures.remove(collection);
+			if (failure == null) {
+				continue; // reported by the next record of the collection
+			}
+			if (ex == null) {
+				ex = new MorphlineRuntimeException("writing to evicted or idle collections failed", failure);
+			} else {
+				ex.addSuppressed(failure);
+			}
+		}
+		if (ex != null) {
+			throw ex;
+		}
+	}
+
+	void forEach(BiConsumer<String, SolrIndexer> action) {
+		indexers.forEach((k, v) -> {
+			final SolrIndexer indexer = v.indexer;
+			if (indexer != null) {
+				action.accept(k, indexer);
+			}
+		});
+	}
+
+	/**
+	 * Runs the operation on every open collection in parallel on the executor
+	 * and waits for all of them, at most timeoutMillis in total (0: no limit).
+	 * Failed or timed out collections are logged one by one and reported
+	 * together. A timed out operation is not interrupted: it goes on in the
+	 * background, so e.g. a shutdown still closes the Solr client.
+	 */
+	void forEachInParallel(String name, Consumer<SolrIndexer> operation, ExecutorService executor,
+			long timeoutMillis) {
+		final Map<String, Future<?>> futures = new LinkedHashMap<>();
+		forEach((k, v) -> futures.put(k, executor.submit(() -> {
+			LOGGER.debug("{} for {} ", name, k);
+			operation.accept(v);
+		})));
+
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		final Map<String, Throwable> failures = new LinkedHashMap<>();
+		for (Map.Entry<String, Future<?>> e : futures.entrySet()) {
+			try {
+				if (timeoutMillis > 0) {
+					e.getValue().get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+				} else {
+					e.getValue().get();
+				}
+			} catch (ExecutionException ex) {
+				failures.put(e.getKey(), ex.getCause());
+			} catch (TimeoutException ex) {
+				failures.put(e.getKey(), ex);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new MorphlineRuntimeException(ex);
+			}
+		}
+
+		if (failures.isEmpty()) {
+			return;
+		}
+		MorphlineRuntimeException ex = new MorphlineRuntimeException(
+				name + " failed for collections " + failures.keySet(), failures.values().iterator().next());
+		failures.forEach((k, v) -> {
+			LOGGER.error("{} failed for collection {}", name, k, v);
+			if (v != ex.getCause()) {
+				ex.addSuppressed(v);
+			}
+		});
+		throw ex;
+	}
+
+	/**
+	 * Forgets every indexer without committing or shutting them down. Used
+	 * after a SHUTDOWN notification has already closed them.
+	 */
+	void clear() {
+		indexers.clear();
+	}
+
+	/**
+	 * Returns false if the collection has been evicted before it could be
+	 * opened, in which case nothing has been opened.
+	 */
+	private boolean open(PooledIndexer pooled) {
+		boolean opened = false;
+		synchronized (pooled) {
+			if (pooled.evicted) {
+				return false;
+			}
+			if (pooled.indexer == null) {
+				try {
+					SolrIndexer indexer = factory.apply(pooled.collection);
+					indexer.beginTransaction();
+					pooled.indexer = indexer;
+					opened = true;
+				} catch (RuntimeException e) {
+					indexers.remove(pooled.collection, pooled);
+					throw e;
+				}
+			}
+		}
+		if (opened) {
+			evictEldestWhileFull(pooled);
+		}
+		return true;
+	}
+
+	/**
+	 * At most once a second: closes idle collections and sends the batches
+	 * of collections that stopped receiving records.
+	 */
+	private void maintain(long now) {
+		final long last = lastMaintenance.get();
+		if (now - last < MAINTENANCE_INTERVAL_MILLIS || !lastMaintenance.compareAndSet(last, now)) {
+			return; // done recently or an other thread is doing it
+		}
+		for (PooledIndexer pooled : indexers.values()) {
+			if (idleTimeoutMillis > 0 && now - pooled.lastAccess >= idleTimeoutMillis) {
+				LOGGER.info("evicting idle collection {}", pooled.collection);
+				evict(pooled);
+			} else {
+				final SolrIndexer indexer = pooled.indexer;
+				if (indexer != null) {
+					try {
+						indexer.flushIfLingering();
+					} catch (RuntimeException e) {
+						fail(pooled.collection, "flush", e);
+					}
+				}
+			}
+		}
+	}
+
+	private void evictEldestWhileFull(PooledIndexer keep) {
+		while (indexers.size() > maxOpenCollections) {
+			PooledIndexer eldest = null;
+			for (PooledIndexer pooled : indexers.values()) {
+				if (pooled != keep && (eldest == null || pooled.lastAccess < eldest.lastAccess)) {
+					eldest = pooled;
+				}
+			}
+			if (eldest == null) {
+				return;
+			}
+			LOGGER.info("evicting least recently used collection {}", eldest.collection);
+			evict(eldest);
+		}
+	}
+
+	private void evict(PooledIndexer pooled) {
+		if (!indexers.remove(pooled.collection, pooled)) {
+			return; // an other thread got it first
+		}
+		final SolrIndexer indexer;
+		synchronized (pooled) {
+			pooled.evicted = true; // a thread about to open it must not
+			indexer = pooled.indexer;
+		}
+		if (indexer != null) {
+			close(pooled.collection, indexer);
+		}
+	}
+
+	private void close(String collection, SolrIndexer indexer) {
+		LOGGER.debug("commit & shutdown for {} ", collection);
+		try {
+			indexer.commitTransaction();
+		} catch (RuntimeException e) {
+			fail(collection, "commit", e);
+		}
+		try {
+			indexer.shutdown();
+		} catch (RuntimeException e) {
+			fail(collection, "shutdown", e);
+		}
+	}
+
+	private void fail(String collection, String operation, RuntimeException e) {
+		LOGGER.error("{} of collection {} failed, reported at its next record or the next commit", operation,
+				collection, e);
+		failures.merge(collection, e, (first, next) -> {
+			if (next != first) {
+				first.addSuppressed(next);
+			}
+			return first;
+		});
+	}
+
+	private static final class PooledIndexer {
+		private final String collection;
+		private volatile SolrIndexer indexer;
+		private volatile long lastAccess;
+		private boolean evicted; // guarded by this
+
+		PooledIndexer(String collection, long lastAccess) {
+			this.collection = collection;
+			this.lastAccess = lastAccess;
+		}
+	}
+
+}
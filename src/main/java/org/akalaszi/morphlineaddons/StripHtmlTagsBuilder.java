@@ -14,8 +14,11 @@
  */
 package org.akalaszi.morphlineaddons;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 
 import org.jsoup.Jsoup;
 import org.kitesdk.morphline.api.Command;
@@ -25,6 +28,8 @@ import org.kitesdk.morphline.api.MorphlineRuntimeException;
 import org.kitesdk.morphline.api.Record;
 import org.kitesdk.morphline.base.AbstractCommand;
 
+import com.google.common.hash.HashCode;
+import com.google.common.io.ByteStreams;
 import com.typesafe.config.Config;
 
 public final class StripHtmlTagsBuilder implements CommandBuilder {
@@ -41,26 +46,49 @@ public final class StripHtmlTagsBuilder implements CommandBuilder {
 
 	private static final class StripHtmlTags extends AbstractCommand {
 
-		private final String fieldsToStrip;
+		private final String[] fieldsToStrip;
+		/** if false, the text of malformed markup is the best guess of the stripper */
+		private final boolean strict;
+		/** null if the texts are not cached */
+		private final ResultCache resultCache;
 
 		public StripHtmlTags(CommandBuilder builder, Config config, Command parent, Command child,
 				MorphlineContext context) {
 			super(builder, config, parent, child, context);
-			fieldsToStrip = getConfigs().getString(config, "fieldsToStrip");
+			fieldsToStrip = getConfigs().getString(config, "fieldsToStrip").split(",");
+			strict = getConfigs().getBoolean(config, "strict", true);
+			resultCache = getConfigs().getBoolean(config, "resultCache", false) ? ResultCache.of(context) : null;
 		}
 
 		@Override
 		protected boolean doProcess(Record record) {
 			try {
-				String[] fields = fieldsToStrip.split(",");
-				for (String f : fields) {
-					String content = HtmlProcessorBuilder.parseAsString(record.getFirstValue(f));
-					record.replaceValues(f, Jsoup.parse(content).text());
+				for (String f : fieldsToStrip) {
+					final Object value = record.getFirstValue(f);
+					if (resultCache == null) {
+						record.replaceValues(f, strip(value));
+						continue;
+					}
+					final Object content = value instanceof InputStream ? ByteStreams.toByteArray((InputStream) value)
+							: value;
+					final HashCode key = ResultCache.key("stripHtmlTags\n" + strict, content);
+					final List<List<String>> text = resultCache.get(key,
+							() -> Collections.singletonList(Collections.singletonList(strip(content))));
+					record.replaceValues(f, text.get(0).get(0));
 				}
 				return super.doProcess(record);
 			} catch (Exception e) {
 				throw new MorphlineRuntimeException(e);
 			}
 		}
+
+		private String strip(Object value) throws IOException {
+			String content = HtmlProcessorBuilder.parseAsString(value);
+			String text = HtmlStripper.text(content, strict);
+			if (text == null) { // markup the stripper does not follow
+				text = Jsoup.parse(content).text();
+			}
+			return text;
+		}
 	}
 }
@@ -0,0 +1,100 @@
+/*
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kitesdk.morphline.solr;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adjusts the rate of a {@link RateLimiter} to the latency of Solr, additive
+ * increase / multiplicative decrease. Once every interval the mean time spent
+ * writing a record is compared with the target: the rate is multiplied by
+ * decreaseFactor if the mean is over the target or a retry happened, kept if
+ * the mean rose by more than half since the previous interval, and raised by
+ * increase otherwise. The rate always stays between minRate and maxRate.
+ *
+ * Thread-safe.
+ */
+final class AdaptiveRateLimiter {
+	private static final double RISING_LATENCY_RATIO = 1.5;
+
+	private final RateLimiter rateLimiter;
+	private final double minRate;
+	private final double maxRate;
+	private final double increase;
+	private final double decreaseFactor;
+	private final long targetLatencyNanos;
+	private final long intervalNanos;
+
+	private long intervalStart; // guarded by this
+	private long count; // guarded by this
+	private long totalNanos; // guarded by this
+	private double previousMeanNanos; // guarded by this
+	private boolean retried; // guarded by this
+
+	AdaptiveRateLimiter(RateLimiter rateLimiter, double minRate, double maxRate, double increase,
+			double decreaseFactor, long targetLatencyMillis, long intervalMillis) {
+		this.rateLimiter = rateLimiter;
+		this.minRate = minRate;
+		this.maxRate = maxRate;
+		this.increase = increase;
+		this.decreaseFactor = decreaseFactor;
+		this.targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(targetLatencyMillis);
+		this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+		this.intervalStart = System.nanoTime();
+		rateLimiter.setRate(minRate);
+	}
+
+	double getRate() {
+		return rateLimiter.getRate();
+	}
+
+	/**
+	 * Records the time it took to write a record.
+	 */
+	void onLatency(long nanos) {
+		onLatency(nanos, System.nanoTime());
+	}
+
+	synchronized void onLatency(long nanos, long now) {
+		count++;
+		totalNanos += nanos;
+		if (now - intervalStart >= intervalNanos) {
+			adjust();
+			intervalStart = now;
+		}
+	}
+
+	/**
+	 * Records that a request to Solr had to be retried.
+	 */
+	synchronized void onRetry() {
+		retried = true;
+	}
+
+	private void adjust() {
+		final double meanNanos = (double) totalNanos / count;
+		final double rate = rateLimiter.getRate();
+		if (retried || meanNanos > targetLatencyNanos) {
+			rateLimiter.setRate(Math.max(minRate, rate * decreaseFactor));
+		} else if (previousMeanNanos == 0 || meanNanos <= previousMeanNanos * RISING_LATENCY_RATIO) {
+			rateLimiter.setRate(Math.min(maxRate, rate + increase));
+		}
+		previousMeanNanos = meanNanos;
+		count = 0;
+		totalNanos = 0;
+		retried = false;
+	}
+
+}
@@ -0,0 +1,198 @@
+/*
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kitesdk.morphline.solr;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import org.kitesdk.morphline.api.MorphlineRuntimeException;
+
+/**
+ * Bounded queue of write operations of a single collection, drained in
+ * chunks on a (possibly shared) executor. At most one drain runs at a time,
+ * so operations are applied in the order they were enqueued.
+ *
+ * A failure of the applier is remembered and reported to the producers on
+ * their next enqueue or barrier, until {@link #discard()} resets it.
+ */
+final class AsyncWriteQueue {
+	private static final int DRAIN_CHUNK_SIZE = 1000;
+
+	private final BlockingQueue<Object> queue;
+	private final boolean failWhenFull;
+	private final Executor executor;
+	private final Consumer<List<Object>> applier;
+	private final AtomicBoolean drainScheduled = new AtomicBoolean();
+
+	private final Object monitor = new Object();
+	private long enqueued; // guarded by monitor
+	private long completed; // guarded by monitor
+	private Throwable failure; // guarded by monitor
+
+	AsyncWriteQueue(int capacity, boolean failWhenFull, Executor executor, Consumer<List<Object>> applier) {
+		this.queue = new ArrayBlockingQueue<>(capacity);
+		this.failWhenFull = failWhenFull;
+		this.executor = executor;
+		this.applier = applier;
+	}
+
+	/**
+	 * Blocks while the queue is full, or fails right away if so configured.
+	 * The operation is counted before it is queued, so a drain never
+	 * completes an operation a barrier does not wait for.
+	 */
+	void enqueue(Object operation) {
+		checkFailure();
+		synchronized (monitor) {
+			enqueued++;
+		}
+		boolean queued = false;
+		try {
+			if (failWhenFull) {
+				queued = queue.offer(operation);
+				if (!queued) {
+					throw new MorphlineRuntimeException("Solr write queue is full");
+				}
+			} else {
+				queue.put(operation);
+				queued = true;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MorphlineRuntimeException(e);
+		} finally {
+			if (!queued) {
+				synchronized (monitor) {
+					enqueued--;
+					monitor.notifyAll();
+				}
+			}
+		}
+		scheduleDrain();
+	}
+
+	/**
+	 * Waits until every operation enqueued before this call has been applied.
+	 */
+	void awaitCompletion() {
+		synchronized (monitor) {
+			final long target = enqueued;
+			while (completed < target && failure == null) {
+				try {
+					monitor.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new MorphlineRuntimeException(e);
+				}
+			}
+		}
+		checkFailure();
+	}
+
+	/**
+	 * Drops the operations not applied yet, waits for the running drain and
+	 * forgets a previous failure.
+	 */
+	void discard() {
+		complete(queue.drainTo(new ArrayList<>()));
+		synchronized (monitor) {
+			failure = null;
+			while (drainScheduled.get() && completed < enqueued) {
+				try {
+					monitor.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new MorphlineRuntimeException(e);
+				}
+			}
+		}
+	}
+
+	private void checkFailure() {
+		synchronized (monitor) {
+			if (failure != null) {
+				throw new MorphlineRuntimeException("Asynchronous Solr write failed", failure);
+			}
+		}
+	}
+
+	private void scheduleDrain() {
+		if (drainScheduled.compareAndSet(false, true)) {
+			try {
+				executor.execute(this::drain);
+			} catch (RejectedExecutionException e) {
+				drainScheduled.set(false);
+				fail(e);
+			}
+		}
+	}
+
+	private void drain() {
+		final List<Object> chunk = new ArrayList<>(Math.min(DRAIN_CHUNK_SIZE, queue.size() + 1));
+		try {
+			while (queue.drainTo(chunk, DRAIN_CHUNK_SIZE) > 0) {
+				try {
+					if (!hasFailed()) {
+						applier.accept(chunk);
+					}
+				} catch (RuntimeException | Error e) {
+					fail(e);
+				} finally {
+					complete(chunk.size());
+					chunk.clear();
+				}
+			}
+		} finally {
+			drainScheduled.set(false);
+			synchronized (monitor) {
+				monitor.notifyAll();
+			}
+			// an operation enqueued after the last drainTo() but before the
+			// flag was reset would be stranded otherwise
+			if (!queue.isEmpty()) {
+				scheduleDrain();
+			}
+		}
+	}
+
+	private boolean hasFailed() {
+		synchronized (monitor) {
+			return failure != null;
+		}
+	}
+
+	private void fail(Throwable t) {
+		synchronized (monitor) {
+			if (failure == null) {
+				failure = t;
+			}
+			monitor.notifyAll();
+		}
+	}
+
+	private void complete(int count) {
+		synchronized (monitor) {
+			completed += count;
+			monitor.notifyAll();
+		}
+	}
+
+}
@@ -0,0 +1,200 @@
+/*
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kitesdk.morphline.solr;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.SolrInputField;
+
+/**
+ * Documents and deletes waiting to be sent to Solr. The batch is full when it
+ * reaches maxDocs operations or approximately maxBytes bytes, and lingers
+ * when its oldest operation has waited for maxLingerMillis. A limit of 0
+ * disables the corresponding check.
+ *
+ * The batch is sent in the order adds, deletes by id, deletes by query. To
+ * keep that equivalent to the order the operations arrived in, a delete by
+ * id drops the pending adds of the same id, and {@link #mustFlushBefore}
+ * tells when an add has to wait for the pending deletes to be sent.
+ *
+ * Not thread-safe, guarded by the owning {@link SolrIndexer}.
+ */
+final class DocumentBatch {
+	private final int maxDocs;
+	private final long maxBytes;
+	private final long maxLingerMillis;
+	private final String uniqueKeyField;
+
+	private final List<SolrInputDocument> docs = new ArrayList<>();
+	private final Set<String> docIds = new HashSet<>();
+	private final Set<String> deleteIds = new LinkedHashSet<>();
+	private final List<String> deleteQueries = new ArrayList<>();
+	private long bytes;
+	private long firstAddMillis;
+
+	DocumentBatch(int maxDocs, long maxBytes, long maxLingerMillis, String uniqueKeyField) {
+		this.maxDocs = maxDocs;
+		this.maxBytes = maxBytes;
+		this.maxLingerMillis = maxLingerMillis;
+		this.uniqueKeyField = uniqueKeyField;
+	}
+
+	/**
+	 * True if the document must not be reordered before the pending deletes:
+	 * it replaces a document deleted in this batch, or any delete by query is
+	 * pending.
+	 */
+	boolean mustFlushBefore(SolrInputDocument doc) {
+		if (!deleteQueries.isEmpty()) {
+			return true;
+		}
+		String id = idOf(doc);
+		return id != null && deleteIds.contains(id);
+	}
+
+	void add(SolrInputDocument doc) {
+		started();
+		docs.add(doc);
+		String id = idOf(doc);
+		if (id != null) {
+			docIds.add(id);
+		}
+		if (maxBytes > 0) {
+			bytes += estimateSize(doc);
+		}
+	}
+
+	void deleteById(String id) {
+		started();
+		if (docIds.remove(id)) {
+			// the delete wins over the adds of this batch
+			docs.removeIf(doc -> {
+				if (!id.equals(idOf(doc))) {
+					return false;
+				}
+				if (maxBytes > 0) {
+					bytes -= estimateSize(doc);
+				}
+				return true;
+			});
+		}
+		if (deleteIds.add(id)) {
+			bytes += id.length();
+		}
+	}
+
+	void deleteByQuery(String query) {
+		started();
+		deleteQueries.add(query);
+		bytes += query.length();
+	}
+
+	boolean isEmpty() {
+		return docs.isEmpty() && deleteIds.isEmpty() && deleteQueries.isEmpty();
+	}
+
+	boolean isFull() {
+		return (maxDocs > 0 && size() >= maxDocs) || (maxBytes > 0 && bytes >= maxBytes);
+	}
+
+	boolean isLingering(long nowMillis) {
+		return maxLingerMillis > 0 && !isEmpty() && nowMillis - firstAddMillis >= maxLingerMillis;
+	}
+
+	List<SolrInputDocument> docs() {
+		return docs;
+	}
+
+	Collection<String> deleteIds() {
+		return deleteIds;
+	}
+
+	List<String> deleteQueries() {
+		return deleteQueries;
+	}
+
+	void clear() {
+		docs.clear();
+		docIds.clear();
+		deleteIds.clear();
+		deleteQueries.clear();
+		bytes = 0;
+	}
+
+	private int size() {
+		return docs.size() + deleteIds.size() + deleteQueries.size();
+	}
+
+	private void started() {
+		if (isEmpty()) {
+			firstAddMillis = System.currentTimeMillis();
+		}
+	}
+
+	private String idOf(SolrInputDocument doc) {
+		Object id = doc.getFieldValue(uniqueKeyField);
+		return id == null ? null : id.toString();
+	}
+
+	/**
+	 * Rough estimate of the size of the document on the wire. Only used to
+	 * decide when to flush, so it favours speed over precision.
+	 */
+	static long estimateSize(SolrInputDocument doc) {
+		long size = 0;
+		for (SolrInputField field : doc) {
+			size += field.getName().length() + estimateValueSize(field.getValue());
+		}
+		List<SolrInputDocument> children = doc.getChildDocuments();
+		if (children != null) {
+			for (SolrInputDocument child : children) {
+				size += estimateSize(child);
+			}
+		}
+		return size;
+	}
+
+	private static long estimateValueSize(Object value) {
+		if (value instanceof CharSequence) {
+			return ((CharSequence) value).length();
+		}
+		if (value instanceof byte[]) {
+			return ((byte[]) value).length;
+		}
+		if (value instanceof Collection) {
+			long size = 0;
+			for (Object v : (Collection<?>) value) {
+				size += estimateValueSize(v);
+			}
+			return size;
+		}
+		if (value instanceof Map) {
+			long size = 0;
+			for (Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) {
+				size += estimateValueSize(e.getKey()) + estimateValueSize(e.getValue());
+			}
+			return size;
+		}
+		return 8;
+	}
+
+}
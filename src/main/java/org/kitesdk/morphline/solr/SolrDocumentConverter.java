@@ -0,0 +1,99 @@
+/*
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kitesdk.morphline.solr;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.SolrInputField;
+import org.kitesdk.morphline.api.MorphlineRuntimeException;
+import org.kitesdk.morphline.api.Record;
+
+/**
+ * Converts records to SolrInputDocuments. The record is read in place, fields
+ * that must not be indexed (e.g. routing fields) are skipped instead of
+ * copying the record and removing them.
+ *
+ * Single values are set as they are, so Solr does not copy them into a list
+ * of their own; multiple values are copied into a list, as the document must
+ * not change with the record. Field names are canonicalized, documents waiting in a batch or
+ * queue share the same name instances. Thread-safe.
+ */
+final class SolrDocumentConverter {
+	private static final int MAX_CANONICAL_FIELD_NAMES = 10000;
+
+	private final ConcurrentHashMap<String, String> fieldNames = new ConcurrentHashMap<>();
+
+	SolrInputDocument convert(Record record, Set<String> excludedFields) {
+		Map<String, Collection<Object>> map = record.getFields().asMap();
+		SolrInputDocument doc = new SolrInputDocument(new HashMap<String, SolrInputField>(capacityFor(map.size())));
+		for (Map.Entry<String, Collection<Object>> entry : map.entrySet()) {
+			String key = entry.getKey();
+			if (excludedFields.contains(key)) {
+				continue;
+			}
+			if (LoadSolrBuilder.LOAD_SOLR_CHILD_DOCUMENTS.equals(key)) {
+				for (Object value : entry.getValue()) {
+					if (value instanceof Record) {
+						value = convert((Record) value, Collections.<String>emptySet()); // recurse
+					}
+					if (value instanceof SolrInputDocument) {
+						doc.addChildDocument((SolrInputDocument) value);
+					} else {
+						throw new MorphlineRuntimeException("Child document must be of class " + Record.class.getName()
+								+ " or " + SolrInputDocument.class.getName() + ": " + value);
+					}
+				}
+			} else {
+				Collection<Object> values = entry.getValue();
+				// the values of a ListMultimap are lists, get() saves an iterator
+				Object first = values instanceof List ? ((List<Object>) values).get(0) : values.iterator().next();
+				if (values.size() == 1 && !(first instanceof Collection) && !(first instanceof Object[])) {
+					// a Map is an atomic update, anything else a plain single value
+					doc.setField(canonical(key), first);
+				} else {
+					// the values are a live view of the record, which may change while the
+					// document waits in a batch or queue
+					doc.setField(canonical(key), new ArrayList<>(values));
+				}
+			}
+		}
+		return doc;
+	}
+
+	private String canonical(String fieldName) {
+		String canonical = fieldNames.get(fieldName);
+		if (canonical != null) {
+			return canonical;
+		}
+		if (fieldNames.size() >= MAX_CANONICAL_FIELD_NAMES) {
+			return fieldName; // dynamic field names, do not grow forever
+		}
+		canonical = fieldNames.putIfAbsent(fieldName, fieldName);
+		return canonical == null ? fieldName : canonical;
+	}
+
+	private static int capacityFor(int size) {
+		return (int) (size / 0.75f) + 1;
+	}
+
+}
@@ -16,17 +16,31 @@
 package org.kitesdk.morphline.solr;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiFunction;
+import java.util.regex.Pattern;
 
+import org.apache.solr.client.solrj.SolrClient;
 import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.request.CollectionAdminRequest;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.client.solrj.request.schema.SchemaRequest;
 import org.apache.solr.client.solrj.retry.MetricsFacade;
 import org.apache.solr.client.solrj.retry.RetryPolicyFactory;
+import org.apache.solr.common.SolrException;
 import org.apache.solr.common.SolrInputDocument;
-import org.apache.solr.common.SolrInputField;
+import org.kitesdk.morphline.api.MorphlineCompilationException;
 import org.kitesdk.morphline.api.MorphlineContext;
 import org.kitesdk.morphline.api.MorphlineRuntimeException;
 import org.kitesdk.morphline.api.Record;
@@ -41,31 +55,94 @@ import org.kitesdk.morphline.solr.SolrLocator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.codahale.metrics.Gauge;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Timer;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
 
+/**
+ * Loads records into a single Solr collection. An indexer can be shared by
+ * several threads.
+ *
+ * If an executor is given, records are converted on the calling thread and
+ * written to Solr asynchronously by the executor, see asyncQueueCapacity and
+ * asyncQueueFullPolicy.
+ */
 public class SolrIndexer {
 	private static final Logger LOGGER = LoggerFactory.getLogger(SolrIndexer.class);
+	private static final int DELETE_QUERIES_PER_REQUEST = 100;
+	/** delete queries not OR-ed with others: with local params, or negative */
+	private static final Pattern ALONE_DELETE_QUERY = Pattern.compile("^\\s*(\\{!|-|!|NOT[\\s(])");
+	private static final SolrDocumentConverter CONVERTER = new SolrDocumentConverter();
+	private static final Object FLUSH = new Object(); // asynchronous operation
 	private static final boolean DISABLE_RETRY_POLICY_BY_DEFAULT = Boolean.parseBoolean(
 			System.getProperty(LoadSolrBuilder.class.getName() + ".disableRetryPolicyByDefault", "false"));
 
+	private final String collectionName;
 	private final DocumentLoader loader;
+	private final SolrClient solrClient;
 	private final RateLimiter rateLimiter;
+	private final AdaptiveRateLimiter adaptiveRateLimiter; // null unless adaptiveRateLimiting
 	private final Timer elapsedTime;
 	private final boolean isDryRun;
+	private final DocumentBatch batch; // guarded by this
+	private final AsyncWriteQueue asyncQueue;
+	private final ReadWriteLock shutdownLock = new ReentrantReadWriteLock();
+	private boolean isShutdown; // guarded by shutdownLock
 
 	public SolrIndexer(Config config, MorphlineContext context, String collectionName) {
+		this(config, context, collectionName, null);
+	}
+
+	/**
+	 * @param asyncExecutor
+	 *            runs the asynchronous writes, null to write on the calling
+	 *            thread
+	 */
+	public SolrIndexer(Config config, MorphlineContext context, String collectionName, Executor asyncExecutor) {
+		this(config, context, collectionName, asyncExecutor,
+				(configs, metrics) -> initDocumentLoader(config, context, collectionName, configs, metrics));
+	}
+
+	/**
+	 * @param loaderFactory
+	 *            creates the loader from the configs and the metrics facade
+	 *            it reports to, lets tests give a loader of their own
+	 */
+	SolrIndexer(Config config, MorphlineContext context, String collectionName, Executor asyncExecutor,
+			BiFunction<Configs, MetricsFacade, DocumentLoader> loaderFactory) {
 
 		Configs configs = new Configs();
-		this.loader = initDocumentLoader(config, context, collectionName, configs);
+		this.collectionName = collectionName;
 		this.rateLimiter = initRateLimiter(config, configs);
+		this.adaptiveRateLimiter = initAdaptiveRateLimiter(config, configs, rateLimiter);
+		final Pattern retryMeterPattern = Pattern.compile(configs.getString(config, "retryMeterPattern", ".*retries.*"));
+		this.loader = loaderFactory.apply(configs,
+				new CodahaleMetricsFacade(context.getMetricRegistry(), adaptiveRateLimiter, retryMeterPattern));
+		this.solrClient = loader instanceof SolrServerDocumentLoader ? ((SolrServerDocumentLoader) loader).getSolrServer()
+				: null;
+		this.batch = initBatch(config, configs);
+		this.asyncQueue = initAsyncQueue(config, configs, asyncExecutor);
 		configs.validateArguments(config);
 
 		this.isDryRun = initDryRun(context);
 		this.elapsedTime = initTimer(context, collectionName, new String[] { Metrics.ELAPSED_TIME });
+		if (adaptiveRateLimiter != null) {
+			initRateGauge(context, collectionName);
+		}
+	}
+
+	/**
+	 * Replaces the gauge of a previous indexer of the same collection.
+	 */
+	private void initRateGauge(MorphlineContext context, String collectionName) {
+		final String name = MetricRegistry.name("LoadSolrDCXA-" + collectionName, "recordsPerSecond");
+		final MetricRegistry registry = context.getMetricRegistry();
+		registry.remove(name);
+		registry.register(name, (Gauge<Double>) adaptiveRateLimiter::getRate);
 	}
 
 	private Timer initTimer(MorphlineContext context, String collectionName, String[] names) {
@@ -80,15 +157,75 @@ public class SolrIndexer {
 		return RateLimiter.create(configs.getDouble(config, "maxRecordsPerSecond", Double.MAX_VALUE));
 	}
 
+	/**
+	 * Returns null unless adaptiveRateLimiting is enabled. The rate starts at
+	 * minRecordsPerSecond and is kept below maxRecordsPerSecond.
+	 */
+	private static AdaptiveRateLimiter initAdaptiveRateLimiter(Config config, Configs configs,
+			RateLimiter rateLimiter) {
+		boolean adaptive = configs.getBoolean(config, "adaptiveRateLimiting", false);
+		double minRate = configs.getDouble(config, "minRecordsPerSecond", 10);
+		double increase = configs.getDouble(config, "rateIncrease", 0);
+		double decreaseFactor = configs.getDouble(config, "rateDecreaseFactor", 0.5);
+		long targetLatencyMillis = configs.getLong(config, "targetLatencyMillis", 50);
+		long intervalMillis = configs.getLong(config, "rateAdjustIntervalMillis", 1000);
+		if (!adaptive) {
+			return null;
+		}
+		double maxRate = rateLimiter.getRate();
+		if (maxRate == Double.MAX_VALUE) {
+			throw new MorphlineCompilationException("adaptiveRateLimiting requires maxRecordsPerSecond", config);
+		}
+		if (minRate <= 0 || minRate > maxRate) {
+			throw new MorphlineCompilationException(
+					"minRecordsPerSecond must be positive and not greater than maxRecordsPerSecond", config);
+		}
+		if (decreaseFactor <= 0 || decreaseFactor >= 1) {
+			throw new MorphlineCompilationException("rateDecreaseFactor must be between 0 and 1", config);
+		}
+		if (increase <= 0) {
+			increase = maxRate / 20; // from min to max in 20 intervals
+		}
+		return new AdaptiveRateLimiter(rateLimiter, minRate, maxRate, increase, decreaseFactor, targetLatencyMillis,
+				intervalMillis);
+	}
+
+	/**
+	 * Returns null if batching is disabled, i.e. none of the batch limits
+	 * are given.
+	 */
+	private static DocumentBatch initBatch(Config config, Configs configs) {
+		int maxDocs = configs.getInt(config, "maxBatchSize", 0);
+		long maxBytes = configs.getLong(config, "maxBatchBytes", 0);
+		long maxLingerMillis = configs.getLong(config, "maxBatchLingerMillis", 0);
+		String uniqueKeyField = configs.getString(config, "uniqueKeyField", "id");
+		if (maxDocs <= 0 && maxBytes <= 0 && maxLingerMillis <= 0) {
+			return null;
+		}
+		return new DocumentBatch(maxDocs, maxBytes, maxLingerMillis, uniqueKeyField);
+	}
+
+	private AsyncWriteQueue initAsyncQueue(Config config, Configs configs, Executor asyncExecutor) {
+		int capacity = configs.getInt(config, "asyncQueueCapacity", 10000);
+		String policy = configs.getString(config, "asyncQueueFullPolicy", "block");
+		if (!"block".equals(policy) && !"fail".equals(policy)) {
+			throw new MorphlineCompilationException("asyncQueueFullPolicy must be block or fail: " + policy, config);
+		}
+		if (asyncExecutor == null) {
+			return null;
+		}
+		return new AsyncWriteQueue(capacity, "fail".equals(policy), asyncExecutor, this::applyAll);
+	}
+
 	private static DocumentLoader initDocumentLoader(Config config, MorphlineContext context, String collectionName,
-			Configs configs) {
+			Configs configs, MetricsFacade metrics) {
 		Config solrLocatorConfig = configs.getConfig(config, LoadSolrBuilder.SOLR_LOCATOR_PARAM);
 		SolrLocator locator = new SolrLocator(solrLocatorConfig, context);
 		locator.setCollectionName(collectionName);
 		LOGGER.debug("solrLocator: {}", locator);
 
 		RetryPolicyFactory retryPolicyFactory = parseRetryPolicyFactory(configs.getConfig(config, "retryPolicy", null));
-		return locator.getLoader(retryPolicyFactory, new CodahaleMetricsFacade(context.getMetricRegistry()));
+		return locator.getLoader(retryPolicyFactory, metrics);
 	}
 
 	private static RetryPolicyFactory parseRetryPolicyFactory(Config retryPolicyConfig) {
@@ -105,7 +242,7 @@ public class SolrIndexer {
 		}
 	}
 
-	public void beginTransaction() {
+	public synchronized void beginTransaction() {
 		try {
 			loader.beginTransaction();
 		} catch (IOException | SolrServerException e) {
@@ -113,52 +250,272 @@ public class SolrIndexer {
 		}
 	}
 
-	public void commitTransaction() {
+	/**
+	 * Fails unless the collection answers a ping and its fields and unique
+	 * key are the same as those of the template collection. The schema check
+	 * is skipped if the loaders do not give access to their SolrClient.
+	 */
+	public void validate(SolrIndexer template) {
+		if (isDryRun) {
+			LOGGER.info("dryrun: skipping validation of collection {}", collectionName);
+			return;
+		}
 		try {
-			loader.commitTransaction();
-		} catch (IOException | SolrServerException e) {
-			throw new MorphlineRuntimeException(e);
+			loader.ping();
+			if (solrClient == null || template.solrClient == null) {
+				return;
+			}
+			if (!schemaFields().equals(template.schemaFields())) {
+				throw new MorphlineRuntimeException("The fields of collection " + collectionName
+						+ " differ from those of collection " + template.collectionName);
+			}
+			if (!uniqueKey().equals(template.uniqueKey())) {
+				throw new MorphlineRuntimeException("The unique key of collection " + collectionName
+						+ " differs from that of collection " + template.collectionName);
+			}
+		} catch (IOException | SolrServerException | SolrException e) {
+			throw new MorphlineRuntimeException("Validation of collection " + collectionName + " failed", e);
 		}
 	}
 
-	public void rollbackTransaction() {
+	/**
+	 * The collections of the cluster the loader talks to.
+	 */
+	public List<String> listCollections() {
+		if (solrClient == null) {
+			throw new MorphlineRuntimeException("Cannot list the collections, the loader does not expose its SolrClient");
+		}
 		try {
-			loader.rollbackTransaction();
+			return CollectionAdminRequest.listCollections(solrClient);
 		} catch (IOException | SolrServerException e) {
 			throw new MorphlineRuntimeException(e);
 		}
 	}
 
+	private Map<String, Map<String, Object>> schemaFields() throws IOException, SolrServerException {
+		Map<String, Map<String, Object>> fields = new HashMap<>();
+		for (Map<String, Object> field : new SchemaRequest.Fields().process(solrClient, collectionName).getFields()) {
+			fields.put(String.valueOf(field.get("name")), field);
+		}
+		return fields;
+	}
+
+	private String uniqueKey() throws IOException, SolrServerException {
+		return String.valueOf(new SchemaRequest.UniqueKey().process(solrClient, collectionName).getUniqueKey());
+	}
+
+	/**
+	 * In asynchronous mode asks the writer to send its pending batch once it
+	 * has written the records sent so far, without waiting for it. Calling
+	 * this on every collection before committing them lets the writers send
+	 * their last batches in parallel. Does nothing in synchronous mode.
+	 */
+	public void flushAsync() {
+		final Lock lock = shutdownLock.readLock();
+		lock.lock();
+		try {
+			if (asyncQueue != null && !isShutdown) {
+				asyncQueue.enqueue(FLUSH);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * In asynchronous mode waits for every record sent so far to be written.
+	 * The records of every thread sharing the indexer are committed.
+	 */
+	public void commitTransaction() {
+		if (asyncQueue != null) {
+			asyncQueue.awaitCompletion();
+		}
+		synchronized (this) {
+			try {
+				flushBatch();
+				loader.commitTransaction();
+			} catch (IOException | SolrServerException e) {
+				throw new MorphlineRuntimeException(e);
+			}
+		}
+	}
+
+	/**
+	 * Drops the records not sent yet, those of every thread sharing the
+	 * indexer.
+	 */
+	public void rollbackTransaction() {
+		// records not sent yet belong to the transaction being rolled back
+		if (asyncQueue != null) {
+			asyncQueue.discard();
+		}
+		synchronized (this) {
+			try {
+				discardBatch();
+				loader.rollbackTransaction();
+			} catch (IOException | SolrServerException e) {
+				throw new MorphlineRuntimeException(e);
+			}
+		}
+	}
+
 	public void shutdown() {
+		final Lock lock = shutdownLock.writeLock();
+		lock.lock();
 		try {
-			loader.shutdown();
+			if (isShutdown) {
+				return;
+			}
+			isShutdown = true;
+			try {
+				if (asyncQueue != null) {
+					asyncQueue.awaitCompletion();
+				}
+				synchronized (this) {
+					flushBatch();
+					if (!isDryRun) {
+						// the documents loaded since the last commit, e.g. between the
+						// commit and the shutdown of an evicted collection
+						loader.commitTransaction();
+					}
+				}
+			} finally {
+				synchronized (this) {
+					loader.shutdown();
+				}
+			}
 		} catch (IOException | SolrServerException e) {
 			throw new MorphlineRuntimeException(e);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Sends the pending batch if its oldest document has waited longer than
+	 * maxBatchLingerMillis. Lets a caller flush collections that do not
+	 * receive new records.
+	 */
+	public synchronized void flushIfLingering() {
+		if (batch != null && batch.isLingering(System.currentTimeMillis())) {
+			try {
+				flushBatch();
+			} catch (IOException | SolrServerException e) {
+				throw new MorphlineRuntimeException(e);
+			}
 		}
 	}
 
 	public void sendToSolr(Record record) {
-		rateLimiter.acquire();
-		Timer.Context timerContext = elapsedTime.time();
+		sendToSolr(record, Collections.<String>emptySet());
+	}
+
+	/**
+	 * @param excludedFields
+	 *            fields of the record not to send to Solr
+	 */
+	public void sendToSolr(Record record, Set<String> excludedFields) {
+		if (!trySendToSolr(record, excludedFields)) {
+			throw new MorphlineRuntimeException("SolrIndexer has been shut down");
+		}
+	}
+
+	/**
+	 * Returns false instead of sending if the indexer has been shut down
+	 * concurrently. The record is not modified, and not referenced after the
+	 * call returns.
+	 */
+	public boolean trySendToSolr(Record record, Set<String> excludedFields) {
+		final Lock lock = shutdownLock.readLock();
+		lock.lock();
+		try {
+			if (isShutdown) {
+				return false;
+			}
+			rateLimiter.acquire();
+			final Object operation = toOperation(record, excludedFields);
+			if (asyncQueue == null) {
+				synchronized (this) {
+					apply(operation);
+				}
+			} else {
+				asyncQueue.enqueue(operation);
+			}
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Converts the record on the calling thread, to a SolrInputDocument or to
+	 * the Deletes it asks for.
+	 */
+	private Object toOperation(Record record, Set<String> excludedFields) {
 		List<?> deleteById = record.get(LoadSolrBuilder.LOAD_SOLR_DELETE_BY_ID);
 		List<?> deleteByQuery = record.get(LoadSolrBuilder.LOAD_SOLR_DELETE_BY_QUERY);
+		if (deleteById.isEmpty() && deleteByQuery.isEmpty()) {
+			return CONVERTER.convert(record, excludedFields);
+		}
+		return new Deletes(toStrings(deleteById), toStrings(deleteByQuery));
+	}
+
+	/**
+	 * Called by the writer thread in asynchronous mode.
+	 */
+	private synchronized void applyAll(List<Object> operations) {
+		for (Object operation : operations) {
+			apply(operation);
+		}
+	}
+
+	private void apply(Object operation) {
+		Timer.Context timerContext = elapsedTime.time();
 		try {
-			if (deleteById.isEmpty() && deleteByQuery.isEmpty()) {
-				saveRecord(record);
+			if (operation instanceof SolrInputDocument) {
+				saveDocument((SolrInputDocument) operation);
+				return;
+			}
+			if (operation == FLUSH) {
+				flushBatch();
 				return;
-			} 
-			deleteByIds(deleteById);
-			deleteByQuery(deleteByQuery);
+			}
+			Deletes deletes = (Deletes) operation;
+			if (batch == null) {
+				deleteByIds(deletes.ids);
+				deleteByQuery(deletes.queries);
+				return;
+			}
+			deletes.ids.forEach(batch::deleteById);
+			deletes.queries.forEach(batch::deleteByQuery);
+			if (batch.isFull() || batch.isLingering(System.currentTimeMillis())) {
+				flushBatch();
+			}
 		} catch (IOException | SolrServerException e) {
 			throw new MorphlineRuntimeException(e);
 		} finally {
-			timerContext.stop();
+			final long nanos = timerContext.stop();
+			if (adaptiveRateLimiter != null) {
+				adaptiveRateLimiter.onLatency(nanos);
+			}
 		}
+	}
 
+	private void saveDocument(SolrInputDocument doc) throws IOException, SolrServerException {
+		if (batch == null) {
+			load(doc);
+			return;
+		}
+		if (batch.mustFlushBefore(doc)) {
+			flushBatch();
+		}
+		batch.add(doc);
+		if (batch.isFull() || batch.isLingering(System.currentTimeMillis())) {
+			flushBatch();
+		}
 	}
 
-	private void saveRecord(Record record) throws IOException, SolrServerException {
-		SolrInputDocument doc = convert(record);
+	private void load(SolrInputDocument doc) throws IOException, SolrServerException {
 		if (isDryRun) {
 			LOGGER.info("dryrun: update: {}", doc);
 		} else {
@@ -166,72 +523,135 @@ public class SolrIndexer {
 		}
 	}
 
-	private void deleteByQuery(List<?> deleteByQuery) throws IOException, SolrServerException {
-		for (Object query : deleteByQuery) {
-			if (isDryRun) {
-				LOGGER.info("dryrun: deleteByQuery: {}", query);
-			} else {
-				loader.deleteByQuery(query.toString());
+	/**
+	 * Hands the pending documents to the loader and asks it to send them,
+	 * then sends the pending deletes. DocumentLoader.commitTransaction() only
+	 * sends outstanding documents and waits for the ack, the Solr commit
+	 * itself is left to Solr's autoCommit.
+	 */
+	private void flushBatch() throws IOException, SolrServerException {
+		if (batch == null || batch.isEmpty()) {
+			return;
+		}
+		try {
+			if (!batch.docs().isEmpty()) {
+				for (SolrInputDocument doc : batch.docs()) {
+					load(doc);
+				}
+				if (!isDryRun) {
+					loader.commitTransaction();
+				}
 			}
+			deleteByIds(batch.deleteIds());
+			deleteByQuery(batch.deleteQueries());
+		} finally {
+			batch.clear();
+		}
+	}
+
+	private void discardBatch() {
+		if (batch != null) {
+			batch.clear();
 		}
 	}
 
-	private void deleteByIds(List<?> deleteById) throws IOException, SolrServerException {
-		for (Object id : deleteById) {
-			if (isDryRun) {
-				LOGGER.info("dryrun: deleteById: {}", id);
+	/**
+	 * Sends the queries OR-ed together, DELETE_QUERIES_PER_REQUEST at a time.
+	 * A query with local params (e.g. {!join ...}) is sent alone, as its params
+	 * only apply at the start of the query, and so is a negative query (e.g.
+	 * -type:x), as a purely negative clause matches nothing.
+	 */
+	private void deleteByQuery(List<String> deleteByQuery) throws IOException, SolrServerException {
+		if (deleteByQuery.isEmpty()) {
+			return;
+		}
+		if (isDryRun) {
+			LOGGER.info("dryrun: deleteByQuery: {}", deleteByQuery);
+			return;
+		}
+		final List<String> combinable = new ArrayList<>(deleteByQuery.size());
+		for (String query : deleteByQuery) {
+			if (ALONE_DELETE_QUERY.matcher(query).find()) {
+				loader.deleteByQuery(query);
 			} else {
-				loader.deleteById(id.toString());
+				combinable.add(query);
+			}
+		}
+		for (List<String> queries : Lists.partition(combinable, DELETE_QUERIES_PER_REQUEST)) {
+			if (queries.size() == 1) {
+				loader.deleteByQuery(queries.get(0));
+			} else {
+				loader.deleteByQuery("(" + String.join(") OR (", queries) + ")");
 			}
 		}
 	}
 
-	private SolrInputDocument convert(Record record) {
-		Map<String, Collection<Object>> map = record.getFields().asMap();
-		SolrInputDocument doc = new SolrInputDocument(new HashMap<String, SolrInputField>(2 * map.size()));
-		for (Map.Entry<String, Collection<Object>> entry : map.entrySet()) {
-			String key = entry.getKey();
-			if (LoadSolrBuilder.LOAD_SOLR_CHILD_DOCUMENTS.equals(key)) {
-				for (Object value : entry.getValue()) {
-					if (value instanceof Record) {
-						value = convert((Record) value); // recurse
-					}
-					if (value instanceof SolrInputDocument) {
-						doc.addChildDocument((SolrInputDocument) value);
-					} else {
-						throw new MorphlineRuntimeException("Child document must be of class " + Record.class.getName()
-								+ " or " + SolrInputDocument.class.getName() + ": " + value);
-					}
-				}
-			} else {
-				Collection<Object> values = entry.getValue();
-				if (values.size() == 1 && values.iterator().next() instanceof Map) {
-					doc.setField(key, values.iterator().next()); // it is an
-																	// atomic
-																	// update
-				} else {
-					doc.setField(key, values);
-				}
+	/**
+	 * Sends all the ids in a single request through the SolrClient of the
+	 * loader, which retries and reports to the metrics as it does for the
+	 * documents. One request per id if the loader does not give access to its
+	 * SolrClient.
+	 */
+	private void deleteByIds(Collection<String> deleteById) throws IOException, SolrServerException {
+		if (deleteById.isEmpty()) {
+			return;
+		}
+		if (isDryRun) {
+			LOGGER.info("dryrun: deleteById: {}", deleteById);
+		} else if (solrClient != null) {
+			new UpdateRequest().deleteById(new ArrayList<>(deleteById)).process(solrClient);
+		} else {
+			for (String id : deleteById) {
+				loader.deleteById(id);
 			}
 		}
-		return doc;
+	}
+
+	private static List<String> toStrings(List<?> values) {
+		List<String> strings = new ArrayList<>(values.size());
+		for (Object value : values) {
+			strings.add(value.toString());
+		}
+		return strings;
+	}
+
+	/**
+	 * The deletes requested by a record.
+	 */
+	private static final class Deletes {
+		private final List<String> ids;
+		private final List<String> queries;
+
+		Deletes(List<String> ids, List<String> queries) {
+			this.ids = ids;
+			this.queries = queries;
+		}
 	}
 
 	/**
-	 * A facade using codahale metrics as a backend.
+	 * A facade using codahale metrics as a backend. Tells the adaptive rate
+	 * limiter, if any, about the retries of the loader.
 	 */
 	private static final class CodahaleMetricsFacade implements MetricsFacade {
 
 		private final MetricRegistry registry;
+		private final AdaptiveRateLimiter adaptiveRateLimiter;
+		private final Pattern retryMeterPattern;
 
-		public CodahaleMetricsFacade(MetricRegistry registry) {
+		public CodahaleMetricsFacade(MetricRegistry registry, AdaptiveRateLimiter adaptiveRateLimiter,
+				Pattern retryMeterPattern) {
 			Preconditions.checkNotNull(registry);
 			this.registry = registry;
+			this.adaptiveRateLimiter = adaptiveRateLimiter;
+			this.retryMeterPattern = retryMeterPattern;
 		}
 
 		@Override
 		public void markMeter(String name, long increment) {
 			registry.meter(name).mark(increment);
+			if (adaptiveRateLimiter != null && increment > 0 && retryMeterPattern.matcher(name).matches()) {
+				adaptiveRateLimiter.onRetry();
+			}
 		}
 
 		@Override
@@ -0,0 +1,53 @@
+package org.akalaszi.morphlineaddons;
+
+import java.util.regex.Pattern;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.kitesdk.morphline.api.MorphlineContext;
+
+import com.codahale.metrics.MetricRegistry;
+
+public class ArtifactCacheTest {
+
+	@Test
+	public void shouldShareArtifactsWithinAContext() {
+		// GIVEN
+		MorphlineContext context = new MorphlineContext.Builder().build();
+		MetricRegistry metrics = context.getMetricRegistry();
+
+		// WHEN
+		Pattern first = ArtifactCache.of(context).get("regex", "a.*b", () -> Pattern.compile("a.*b"));
+		Pattern second = ArtifactCache.of(context).get("regex", "a.*b", () -> Pattern.compile("a.*b"));
+		Pattern other = ArtifactCache.of(new MorphlineContext.Builder().build()).get("regex", "a.*b",
+				() -> Pattern.compile("a.*b"));
+
+		// THEN
+		Assert.assertSame(first, second);
+		Assert.assertNotSame(first, other);
+		Assert.assertEquals(1, metrics.meter("artifactCache.misses").getCount());
+		Assert.assertEquals(1, metrics.meter("artifactCache.hits").getCount());
+	}
+
+	@Test
+	public void shouldKeepKindsApart() {
+		// GIVEN
+		ArtifactCache cache = ArtifactCache.of(new MorphlineContext.Builder().build());
+
+		// WHEN
+		Object regex = cache.get("regex", "title", () -> "regex");
+		Object selector = cache.get("cssSelector", "title", () -> "selector");
+
+		// THEN
+		Assert.assertEquals("regex", regex);
+		Assert.assertEquals("selector", selector);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void shouldPassOnCompilerExceptions() {
+		ArtifactCache.of(new MorphlineContext.Builder().build()).get("regex", "(", () -> {
+			throw new IllegalArgumentException("(");
+		});
+	}
+
+}
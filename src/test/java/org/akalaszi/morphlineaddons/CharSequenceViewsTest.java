@@ -0,0 +1,158 @@
+package org.akalaszi.morphlineaddons;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.codahale.metrics.Counter;
+
+public class CharSequenceViewsTest {
+
+	private static final String TEXT = "<html>Customer \u00e9t\u00e9 \u20ac board-1</html>";
+
+	@Test
+	public void shouldReadAsciiBytesInPlace() {
+		// GIVEN
+		CharSequenceViews views = new CharSequenceViews(StandardCharsets.UTF_8, 1024);
+		byte[] bytes = "customer-tkb".getBytes(StandardCharsets.UTF_8);
+
+		// WHEN
+		CharSequence view = views.view(bytes);
+
+		// THEN
+		Assert.assertFalse(view instanceof String);
+		Assert.assertEquals("customer-tkb", view.toString());
+		Assert.assertEquals("tkb", view.subSequence(9, 12).toString());
+	}
+
+	@Test
+	public void shouldDecodeLikeNewString() {
+		for (String charset : Arrays.asList("UTF-8", "ISO-8859-1", "UTF-16", "windows-1252")) {
+			// GIVEN
+			CharSequenceViews views = new CharSequenceViews(Charset.forName(charset), 1024);
+			byte[] bytes = TEXT.getBytes(Charset.forName(charset));
+
+			// WHEN
+			CharSequence view = views.view(bytes);
+
+			// THEN
+			Assert.assertEquals(charset, new String(bytes, Charset.forName(charset)),
+					view.toString());
+		}
+	}
+
+	@Test
+	public void shouldLeaveTheStreamReadable() throws IOException {
+		// GIVEN
+		CharSequenceViews views = new CharSequenceViews(StandardCharsets.UTF_8, 1024);
+		InputStream in = new BufferedInputStream(new ByteArrayInputStream(TEXT.getBytes(StandardCharsets.UTF_8)));
+
+		// WHEN
+		CharSequence view = views.view(in);
+
+		// THEN
+		Assert.assertEquals(TEXT, view.toString());
+		Assert.assertEquals(TEXT, IOUtils.toString(in, StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void shouldNotMatchStreamsLongerThanTheLimit() throws IOException {
+		// GIVEN
+		Counter tooLong = new Counter();
+		CharSequenceViews views = new CharSequenceViews(StandardCharsets.UTF_8, 6, tooLong);
+		InputStream in = new BufferedInputStream(new ByteArrayInputStream(TEXT.getBytes(StandardCharsets.UTF_8)));
+
+		// WHEN
+		CharSequence view = views.view(in);
+
+		// THEN
+		Assert.assertNull(view);
+		Assert.assertEquals(1, tooLong.getCount());
+		Assert.assertEquals(TEXT, IOUtils.toString(in, StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void shouldGrowTheBufferUpToTheLimit() throws IOException {
+		// GIVEN
+		StringBuilder text = new StringBuilder();
+		while (text.length() < 100000) {
+			text.append(TEXT);
+		}
+		byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+		CharSequenceViews views = new CharSequenceViews(StandardCharsets.UTF_8, bytes.length);
+		InputStream in = new BufferedInputStream(new ByteArrayInputStream(bytes), 100);
+
+		// WHEN
+		CharSequence view = views.view(in);
+
+		// THEN
+		Assert.assertEquals(text.toString(), view.toString());
+		Assert.assertEquals(text.toString(), IOUtils.toString(in, StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void shouldDropBuffersGrownByALargeValue() throws IOException {
+		// GIVEN
+		CharSequenceViews views = new CharSequenceViews(StandardCharsets.UTF_8, 8 << 20);
+		byte[] large = new byte[4 << 20];
+		Arrays.fill(large, (byte) 0xe9); // not ASCII, decoded into the char buffer as well
+		Assert.assertEquals(large.length, views.view(new BufferedInputStream(new ByteArrayInputStream(large))).length());
+		Assert.assertTrue(views.retainedBytes() > large.length);
+
+		// WHEN
+		views.release();
+
+		// THEN
+		Assert.assertEquals(0, views.retainedBytes());
+		views.view(new BufferedInputStream(new ByteArrayInputStream(TEXT.getBytes(StandardCharsets.UTF_8))));
+		views.release();
+		Assert.assertTrue(views.retainedBytes() > 0); // small buffers are kept
+	}
+
+	@Test
+	public void shouldWrapStreamsNotSupportingMark() throws IOException {
+		// GIVEN
+		CharSequenceViews views = new CharSequenceViews(StandardCharsets.UTF_8, 1024);
+		InputStream in = new FilterInputStream(new ByteArrayInputStream(TEXT.getBytes(StandardCharsets.UTF_8))) {
+			@Override
+			public boolean markSupported() {
+				return false;
+			}
+		};
+
+		// WHEN
+		InputStream markable = (InputStream) CharSequenceViews.markable(in);
+		CharSequence view = views.view(markable);
+
+		// THEN
+		Assert.assertNotSame(in, markable);
+		Assert.assertEquals(TEXT, view.toString());
+		Assert.assertEquals(TEXT, IOUtils.toString(markable, StandardCharsets.UTF_8));
+		Assert.assertSame(markable, CharSequenceViews.markable(markable));
+	}
+
+	@Test
+	public void shouldMatchBytesLikeTheirString() {
+		// GIVEN
+		CharSequenceViews views = new CharSequenceViews(StandardCharsets.UTF_8, 1024);
+		FieldPatterns patterns = new FieldPatterns(Arrays.asList("<html>.*", ".*\u20ac.*", ".*board-\\d.*"), null);
+
+		for (String value : Arrays.asList(TEXT, "<html>", "board-1", "\u20ac", "x")) {
+			// WHEN
+			boolean matches = patterns.anyMatches(views.view(value.getBytes(StandardCharsets.UTF_8)));
+
+			// THEN
+			Assert.assertEquals(value, patterns.anyMatches(value), matches);
+		}
+	}
+
+}
@@ -86,8 +86,12 @@ public class ConditionalDropTest {
 	}
 
 	static Command createMorphlineCommand(final String config) {
+		return createMorphlineCommand(config, null);
+	}
+
+	static Command createMorphlineCommand(final String config, final Command finalChild) {
 		MorphlineContext morphlineContext = new MorphlineContext.Builder().build();
-		Command morphline = new Compiler().compile(new File(config), null, morphlineContext, null);
+		Command morphline = new Compiler().compile(new File(config), null, morphlineContext, finalChild);
 		Notifications.notifyBeginTransaction(morphline);
 		return morphline;
 	}
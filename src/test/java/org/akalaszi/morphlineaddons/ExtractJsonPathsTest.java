@@ -1,16 +1,26 @@
 package org.akalaszi.morphlineaddons;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
+import org.junit.Assert;
 import org.junit.Test;
 import org.kitesdk.morphline.api.Command;
 import org.kitesdk.morphline.api.Record;
+import org.kitesdk.morphline.base.Fields;
+
+import com.google.common.io.ByteStreams;
 
 public class ExtractJsonPathsTest {
 
+	private static final Path JSON = Paths.get("src/test/resources/lithium_record_noteaser.json");
+
 	@Test
 	public void shouldExtractJsonfields() throws IOException {
 		// GIVEN
@@ -24,9 +34,75 @@ public class ExtractJsonPathsTest {
 		// new record is created that should contain the json path values per field.
 	}
 
+	@Test
+	public void shouldExtractJsonfieldsFromAttachmentBytes() throws IOException {
+		// GIVEN
+		Collector collector = new Collector();
+		Command command = ConditionalDropTest.createMorphlineCommand("src/test/resources/extractAttachment.conf",
+				collector);
+		Record record = new Record();
+		record.put(Fields.ATTACHMENT_BODY, Files.readAllBytes(JSON));
+
+		// WHEN
+		ConditionalDropTest.run(command, record);
+
+		// THEN
+		assertExtracted(collector.records);
+	}
+
+	@Test
+	public void shouldExtractJsonfieldsFromAttachmentStream() throws IOException {
+		// GIVEN
+		Collector collector = new Collector();
+		Command command = ConditionalDropTest.createMorphlineCommand("src/test/resources/extractAttachment.conf",
+				collector);
+		Record record = new Record();
+		try (InputStream in = Files.newInputStream(JSON)) {
+			record.put(Fields.ATTACHMENT_BODY, in);
+
+			// WHEN
+			ConditionalDropTest.run(command, record);
+
+			// THEN
+			assertExtracted(collector.records);
+			InputStream body = (InputStream) collector.records.get(0).getFirstValue(Fields.ATTACHMENT_BODY);
+			Assert.assertArrayEquals(Files.readAllBytes(JSON), ByteStreams.toByteArray(body));
+		}
+	}
+
+	private static void assertExtracted(List<Record> records) {
+		Assert.assertEquals(1, records.size());
+		Record extracted = records.get(0);
+		Assert.assertEquals(Collections.singletonList("subject"), extracted.get("title"));
+		Assert.assertEquals(Collections.singletonList("10000"), extracted.get("id"));
+		Assert.assertEquals(Collections.singletonList("DevBoard"), extracted.get("boardId"));
+		Assert.assertEquals(Collections.singletonList("test"), extracted.get("labels"));
+	}
+
+	/**
+	 * The last command of the morphline, keeping the records it gets.
+	 */
+	private static final class Collector implements Command {
+		private final List<Record> records = new ArrayList<>();
+
+		@Override
+		public Command getParent() {
+			return null;
+		}
+
+		@Override
+		public void notify(Record notification) {
+		}
+
+		@Override
+		public boolean process(Record record) {
+			records.add(record);
+			return true;
+		}
+	}
+
 	private Record createRecord() throws IOException {
-		Path path = Paths.get("src/test/resources/lithium_record_noteaser.json");
-		String data = new String(Files.readAllBytes(path));
+		String data = new String(Files.readAllBytes(JSON));
 		Record record = new Record();
 		record.put("fullcontent", data);
 		return record;
@@ -0,0 +1,88 @@
+package org.akalaszi.morphlineaddons;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.kitesdk.morphline.api.MorphlineRuntimeException;
+
+import com.codahale.metrics.Counter;
+
+public class FieldPatternsTest {
+
+	private static final List<String> REGEXES = Arrays.asList("board-1", "board-2|board-3", "^blog-.*", ".*-tkb",
+			".*/forum/.*", "https://.*", ".*\\.pdf$", "(?!0).*", "[0-9]+", "dev.*board", "blog-x.*");
+
+	private static final List<String> VALUES = Arrays.asList("", "0", "42", "board-1", "board-3", "board-4",
+			"blog-1", "blog-x1", "customer-tkb", "customer-tkbx", "https://example.com/forum/thread",
+			"http://example.com/forum/", "/forum/", "file.pdf", "file.pdf\n", "https://a\nb", "devXboard",
+			"a/forum/\nb", "0blog-");
+
+	@Test
+	public void shouldMatchLikeTheRegexesOneByOne() {
+		// GIVEN
+		FieldPatterns patterns = new FieldPatterns(REGEXES, null);
+
+		for (String value : VALUES) {
+			// WHEN
+			Set<String> matched = new LinkedHashSet<>();
+			boolean any = patterns.addMatches(value, matched);
+
+			// THEN
+			List<String> expected = new ArrayList<>();
+			for (String regex : REGEXES) {
+				if (value.matches(regex)) {
+					expected.add(regex);
+				}
+			}
+			Assert.assertEquals(value, !expected.isEmpty(), patterns.anyMatches(value));
+			Assert.assertEquals(value, !expected.isEmpty(), any);
+			Assert.assertEquals(value, new LinkedHashSet<>(expected), new LinkedHashSet<>(matched));
+		}
+	}
+
+	@Test
+	public void shouldGiveUpOnCatastrophicBacktracking() {
+		// GIVEN
+		Counter exceeded = new Counter();
+		RegexBudget budget = new RegexBudget(100000, 0, RegexBudget.Policy.MATCH, "field", exceeded);
+		FieldPatterns patterns = new FieldPatterns(Arrays.asList("(.*a){12}"), budget);
+
+		// WHEN
+		boolean matches = patterns.anyMatches("aaaaaaaaaaaaaaaaaaaaaaaaaaaaaac");
+
+		// THEN
+		Assert.assertTrue(matches);
+		Assert.assertEquals(1, exceeded.getCount());
+		Assert.assertTrue(patterns.anyMatches("aaaaaaaaaaaa"));
+		Assert.assertEquals(1, exceeded.getCount());
+	}
+
+	@Test(expected = MorphlineRuntimeException.class)
+	public void shouldFailOnTimeoutIfSoConfigured() {
+		// GIVEN
+		RegexBudget budget = new RegexBudget(0, 50, RegexBudget.Policy.FAIL, "field", new Counter());
+		FieldPatterns patterns = new FieldPatterns(Arrays.asList("(.*a){12}"), budget);
+
+		// WHEN
+		patterns.anyMatches("aaaaaaaaaaaaaaaaaaaaaaaaaaaaaac");
+	}
+
+	@Test
+	public void shouldFindAllKeywordsInOnePass() {
+		// GIVEN
+		AhoCorasick automaton = new AhoCorasick(Arrays.asList("he", "she", "his", "hers"));
+		List<String> hits = new ArrayList<>();
+
+		// WHEN
+		automaton.search("ushers", (keyword, end) -> hits.add(keyword + "@" + end));
+
+		// THEN
+		Assert.assertEquals(Arrays.asList("1@4", "0@4", "3@6"), hits);
+	}
+
+}
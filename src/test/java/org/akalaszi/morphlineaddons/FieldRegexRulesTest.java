@@ -0,0 +1,54 @@
+package org.akalaszi.morphlineaddons;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.kitesdk.morphline.api.MorphlineContext;
+import org.kitesdk.morphline.api.Record;
+
+import com.typesafe.config.ConfigFactory;
+
+public class FieldRegexRulesTest {
+
+	@Test
+	public void shouldAddTheMatchedPatternsOnlyIfEveryRuleMatches() {
+		// GIVEN
+		FieldRegexRules rules = FieldRegexRules.compile(
+				ConfigFactory.parseString("b : [\"y\", \"y.*\"], a : \"x.*\", _matchedPatternsField : m"),
+				Collections.<String>emptySet(), new MorphlineContext.Builder().build(), "containsRegex");
+		Record before = matching();
+		rules.allMatch(before);
+		for (int i = 0; i < 2048; i++) {
+			Record failing = new Record(); // the failing rule is tried first from now on
+			failing.put("a", "z");
+			failing.put("b", "y");
+			rules.allMatch(failing);
+		}
+		Record partial = new Record();
+		partial.put("a", "x1");
+		partial.put("b", "z");
+		Record after = matching();
+
+		// WHEN
+		boolean partialMatches = rules.allMatch(partial);
+		boolean allMatch = rules.allMatch(after);
+
+		// THEN
+		Assert.assertFalse(partialMatches);
+		Assert.assertTrue(partial.get("m").isEmpty());
+		Assert.assertTrue(allMatch);
+		Assert.assertEquals(new HashSet<>(Arrays.asList("y", "y.*", "x.*")), new HashSet<>(after.get("m")));
+		Assert.assertEquals(before.get("m"), after.get("m"));
+	}
+
+	private static Record matching() {
+		Record record = new Record();
+		record.put("a", "x1");
+		record.put("b", "y");
+		return record;
+	}
+
+}
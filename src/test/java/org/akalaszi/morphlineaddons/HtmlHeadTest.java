@@ -0,0 +1,122 @@
+package org.akalaszi.morphlineaddons;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HtmlHeadTest {
+
+	private static final String[] PAGES = {
+			"<!DOCTYPE html><html lang=en><head><title>a &amp; b</title><meta name=a name=b NAME=c></head><body>x",
+			"<html><head><meta charset=utf-8>\n<title>t</title>\n<!-- c --><script>var s='</scr'+'ipt>';</script>\n</head>\n"
+					+ "<meta name=late>\n<body><meta name=body>",
+			"<title>no head</title><link rel=x href='a&amp;b'>hello<meta name=body>",
+			"<head><meta name=x></br><meta name=y></foo><template>t</template><meta name=body>",
+			"<head><style>a<b{}</STYLE ><title>a<b</title ><meta content='a\"b' name=\"c'd\" x = y z=></head>",
+			"<head><!---->a<meta name=q><!-- -- --!><meta name=r><?xml x></head><body>",
+			"<head><title>a</title>\n   <title>b</title><noframes>n</noframes></head>", "",
+			"<head><meta name=a", "<head></\u00fc><meta name=b><\u00fc>" };
+
+	private static final String[] SELECTORS = { "head", "head *", "head meta;content", "head title",
+			"head [name];name", "head link[rel=x];href", "head script", "head noframes" };
+
+	@Test
+	public void shouldReadTheHeadAsJsoupParsesIt() throws IOException {
+		Map<String, String> cssByField = new LinkedHashMap<>();
+		for (String css : SELECTORS) {
+			cssByField.put(css, css);
+		}
+		HtmlSelectors selectors = new HtmlSelectors(cssByField, ArtifactCache.noCache());
+		for (String html : withTestPages()) {
+			// GIVEN
+			Document page = Jsoup.parse(html);
+
+			// WHEN
+			Document head = HtmlHead.read(new StringReader(html));
+
+			// THEN
+			Assert.assertNotNull(html, head);
+			Assert.assertEquals(html, page.head().outerHtml(), head.head().outerHtml());
+			Assert.assertEquals(html, selectors.select(page), selectors.select(head));
+		}
+	}
+
+	@Test
+	public void shouldStopReadingAtTheBody() throws IOException {
+		// GIVEN
+		StringBuilder html = new StringBuilder("<html><head><title>t</title></head><body>");
+		while (html.length() < 100000) {
+			html.append("<p>some text</p>");
+		}
+		CountingReader reader = new CountingReader(html.toString());
+
+		// WHEN
+		Document head = HtmlHead.read(reader);
+
+		// THEN
+		Assert.assertEquals("t", head.title());
+		Assert.assertTrue(reader.read < 10000);
+	}
+
+	@Test
+	public void shouldGiveUpOnMarkupItDoesNotFollow() throws IOException {
+		for (String html : new String[] { "<head><noscript><meta name=a></noscript>",
+				"<head><script><!-- x --></script>", "<head><script src=a.js />x</script>", "<head><title>x",
+				"<head><TITLE ID=a>x</title>", "<head> &amp; </head>", "<head><![CDATA[x]]></head>" }) {
+			// WHEN
+			Document head = HtmlHead.read(new StringReader(html));
+
+			// THEN
+			Assert.assertNull(html, head);
+		}
+	}
+
+	@Test
+	public void shouldTellHeadSelectors() {
+		Assert.assertTrue(HtmlHead.isHeadSelector("head title"));
+		Assert.assertTrue(HtmlHead.isHeadSelector("head meta[name=description]"));
+		Assert.assertTrue(HtmlHead.isHeadSelector("head meta[property='og:title'], head link.x#y[rel]"));
+		Assert.assertTrue(HtmlHead.isHeadSelector("HEAD *"));
+		Assert.assertFalse(HtmlHead.isHeadSelector("title"));
+		Assert.assertFalse(HtmlHead.isHeadSelector("head > title"));
+		Assert.assertFalse(HtmlHead.isHeadSelector("head title, meta"));
+		Assert.assertFalse(HtmlHead.isHeadSelector("head meta:first-child"));
+		Assert.assertFalse(HtmlHead.isHeadSelector("header p"));
+	}
+
+	private static String[] withTestPages() throws IOException {
+		String[] pages = new String[PAGES.length + 2];
+		System.arraycopy(PAGES, 0, pages, 0, PAGES.length);
+		pages[PAGES.length] = read("src/test/resources/test.html");
+		pages[PAGES.length + 1] = read("src/test/resources/test2.html");
+		return pages;
+	}
+
+	private static String read(String path) throws IOException {
+		return new String(Files.readAllBytes(Paths.get(path)), "UTF-8");
+	}
+
+	private static final class CountingReader extends StringReader {
+		private int read;
+
+		CountingReader(String s) {
+			super(s);
+		}
+
+		@Override
+		public int read(char[] cbuf, int off, int len) throws IOException {
+			int n = super.read(cbuf, off, len);
+			read += Math.max(n, 0);
+			return n;
+		}
+	}
+
+}
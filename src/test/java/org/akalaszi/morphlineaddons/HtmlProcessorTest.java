@@ -1,11 +1,13 @@
 package org.akalaszi.morphlineaddons;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.Arrays;
@@ -18,6 +20,9 @@ import org.kitesdk.morphline.api.Command;
 import org.kitesdk.morphline.api.Record;
 import org.kitesdk.morphline.base.Fields;
 
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
+
 public class HtmlProcessorTest {
 
 	@Test
@@ -66,6 +71,53 @@ public class HtmlProcessorTest {
 		Assert.assertEquals(Arrays.asList("a", "b", "c"), facets.get("set"));
 	}
 
+	@Test
+	public void shouldReadOnlyTheHeadOfAStream() throws Exception {
+		// GIVEN
+		Command command = ConditionalDropTest.createMorphlineCommand("src/test/resources/htmlprocessor-streamhead.conf");
+		byte[] page = page("<title>title</title>");
+		CountingInputStream input = new CountingInputStream(new ByteArrayInputStream(page));
+		Record record = new Record();
+		record.put(Fields.ATTACHMENT_BODY, new BufferedInputStream(input));
+
+		// WHEN
+		ConditionalDropTest.run(command, record);
+
+		// THEN
+		@SuppressWarnings({ "rawtypes", "unchecked" })
+		final Map<String, String> title = (Map) record.get("title").get(0);
+		Assert.assertEquals("title", title.get("set"));
+		Assert.assertTrue(input.getCount() < 100_000);
+		Assert.assertArrayEquals(page, ByteStreams.toByteArray((InputStream) record.getFirstValue(Fields.ATTACHMENT_BODY)));
+	}
+
+	@Test
+	public void shouldReadTheWholeStreamWhenTheHeadIsNotFollowed() throws Exception {
+		// GIVEN
+		Command command = ConditionalDropTest.createMorphlineCommand("src/test/resources/htmlprocessor-streamhead.conf");
+		CountingInputStream input = new CountingInputStream(
+				new ByteArrayInputStream(page("<noscript><p>x</p></noscript><title>title</title>")));
+		Record record = new Record();
+		record.put(Fields.ATTACHMENT_BODY, input);
+
+		// WHEN
+		ConditionalDropTest.run(command, record);
+
+		// THEN
+		@SuppressWarnings({ "rawtypes", "unchecked" })
+		final Map<String, String> title = (Map) record.get("title").get(0);
+		Assert.assertEquals("title", title.get("set"));
+		Assert.assertEquals(-1, input.read());
+	}
+
+	private static byte[] page(String head) {
+		StringBuilder page = new StringBuilder("<html><head>").append(head).append("</head><body>");
+		for (int i = 0; i < 100_000; i++) {
+			page.append("<p>body</p>");
+		}
+		return page.append("</body></html>").toString().getBytes(StandardCharsets.UTF_8);
+	}
+
 	private Record createRecord(final String key, final String pathname) throws FileNotFoundException {
 		File inputRecord = new File(pathname);
 		InputStream input = new BufferedInputStream(new FileInputStream(inputRecord));
@@ -0,0 +1,68 @@
+package org.akalaszi.morphlineaddons;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HtmlSelectorsTest {
+
+	private static final String PAGE = "<html><head><title>A page</title><meta name=facet content=x>"
+			+ "<meta name=author content=someone></head><body><div id=main class=\"post first\"><p>one <b>bold</b></p>"
+			+ "<p>two</p><a href=/a>a</a></div><div class=post><p>three</p><a href=/b>b</a></div></body></html>";
+
+	@Test
+	public void shouldSelectLikeDocSelectInOneWalk() throws IOException {
+		for (String html : new String[] { PAGE, read("src/test/resources/test.html"),
+				read("src/test/resources/test2.html") }) {
+			// GIVEN
+			Map<String, String> cssByField = new LinkedHashMap<>();
+			cssByField.put("title", "title");
+			cssByField.put("facets", "meta[name=facet];content");
+			cssByField.put("paragraphs", "div.post p");
+			cssByField.put("links", "#main > a;href");
+			cssByField.put("divs", "div");
+			cssByField.put("firsts", "p:first-child");
+			cssByField.put("missing", "table");
+			HtmlSelectors selectors = new HtmlSelectors(cssByField, ArtifactCache.noCache());
+			Document doc = Jsoup.parse(html);
+
+			// WHEN
+			List<List<String>> found = selectors.select(doc);
+
+			// THEN
+			int i = 0;
+			for (Map.Entry<String, String> e : cssByField.entrySet()) {
+				Assert.assertEquals(e.getKey(), selectors.fieldName(i));
+				Assert.assertEquals(e.getKey(), docSelect(doc, e.getValue()), found.get(i));
+				i++;
+			}
+		}
+	}
+
+	/**
+	 * What htmlProcessor used to do for every field.
+	 */
+	private static List<String> docSelect(Document doc, String css) {
+		String[] selectors = css.split(";");
+		List<String> ret = new ArrayList<>();
+		for (Element e : doc.select(selectors[0])) {
+			ret.add(selectors.length == 2 ? e.attr(selectors[1]) : Jsoup.parse(e.toString()).text());
+		}
+		return ret;
+	}
+
+	private static String read(String path) throws IOException {
+		return new String(Files.readAllBytes(Paths.get(path)), "UTF-8");
+	}
+
+}
@@ -0,0 +1,101 @@
+package org.akalaszi.morphlineaddons;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Random;
+
+import org.jsoup.Jsoup;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HtmlStripperTest {
+
+	private static final String[] PAGES = {
+			"<!DOCTYPE html><html><head><meta charset=utf-8><title> The  title &amp; more</title>"
+					+ "<script>var s = '</p>' + 1 < 2;</script><style>p { color: red }</style></head>"
+					+ "<body><h1>T</h1><p>a<p>b<blockquote>q</blockquote></body></html>",
+			"<table><caption>cap</caption><thead><tr><th>h1</th><th>h2</th></tr></thead><tbody><tr><td>a<b>b</b></td>"
+					+ "<td>c</td></tr><tr><td><table><tr><td>n</td></tr></table></td></tr></tbody></table>",
+			"<ul><li>one<li>two<ul><li>x</li></ul></ul><select><option>o1<option>o2</select><dl><dt>t<dd>d</dl>",
+			"<p>a&nbsp;b &amp; c &lt;d&gt; &copy &#x263a; &#169;<br>e<br/>f<wbr>g</p><p>h <!-- c -- > --> i</p>",
+			"<div>x<custom-tag>y</custom-tag>z<svg><text>s</text></svg><math><mi>m</mi></math></div>",
+			"<form><fieldset><legend>L</legend><label>n<input value=v></label><textarea>  t\n x</textarea>"
+					+ "<button>b</button></fieldset></form>",
+			"<p>   lots   of\n\n whitespace \t here  </p><div>\n</div><span> x </span><img alt=x src='a>b'>f<hr>g",
+			"<div><pre>\n\npre <span>text</span>\n  indented</pre></div><textarea>\nx</textarea><xmp><b>x</b></xmp>",
+			"<body>x<![CDATA[ <not> markup ]]>y<?php echo 1 ?>z<!doctype late>w</body>",
+			"a < b > c <3 </ d", "", "   ", "<p>\u00a0caf\u00e9 \ud83d\ude00\u200b</p>",
+			"<p>x <\u00fc y</p>z</\u00fc>" };
+
+	private static final String[] MALFORMED = { "<table>text in table<tr><td>x</td></tr></table>",
+			"<a>nested <a>anchors</a></a>", "<b><p>misnested</b></p>", "<p>unclosed <script>x", "a\0b" };
+
+	private static final String[] FRAGMENTS = { "<p>", "</p>", "<div>", "</div>", "<b>", "</b>", "<span>", "</span>",
+			"<br>", "<li>", "<ul>", "</ul>", "<table>", "<tr>", "<td>", "</td>", "</table>", "<pre>", "</pre>",
+			"<title>", "</title>", "<head>", "</head>", "<body>", "<script>x<y</script>", "<style>a{}</style>",
+			"<!-- c -->", "<![CDATA[d]]>", "<img alt=x>", "<a href='&amp;'>", "</a>", "<select>", "<option>",
+			"</select>", "<h1>", "</h1>", "<textarea>", "</textarea>", "text", " ", "\n", "&amp;", "&nbsp;", "&lt;",
+			"x", "<", ">", "&", "<!", "</", "<?x>", "<\u00fc y", "</\u00fc>", "<\u00c9m>", "\u00e9", "<\u4e2d>", "<\u0663" };
+
+	@Test
+	public void shouldGiveTheTextJsoupGives() throws IOException {
+		for (String html : pages()) {
+			// GIVEN
+			String expected = Jsoup.parse(html).text();
+
+			// WHEN
+			String strict = HtmlStripper.text(html, true);
+			String loose = HtmlStripper.text(html, false);
+
+			// THEN
+			Assert.assertEquals(html, expected, strict);
+			Assert.assertEquals(html, expected, loose);
+		}
+	}
+
+	@Test
+	public void shouldGiveUpOnMalformedMarkupIfStrict() {
+		for (String html : MALFORMED) {
+			// WHEN
+			String strict = HtmlStripper.text(html, true);
+			String loose = HtmlStripper.text(html, false);
+
+			// THEN
+			Assert.assertNull(html, strict);
+			Assert.assertNotNull(html, loose);
+		}
+	}
+
+	@Test
+	public void shouldNeverDifferFromJsoupIfStrict() {
+		// GIVEN
+		Random random = new Random(42);
+		int stripped = 0;
+		for (int i = 0; i < 20000; i++) {
+			StringBuilder html = new StringBuilder();
+			for (int n = random.nextInt(20); n >= 0; n--) {
+				html.append(FRAGMENTS[random.nextInt(FRAGMENTS.length)]);
+			}
+
+			// WHEN
+			String strict = HtmlStripper.text(html.toString(), true);
+
+			// THEN
+			if (strict != null) {
+				Assert.assertEquals(html.toString(), Jsoup.parse(html.toString()).text(), strict);
+				stripped++;
+			}
+		}
+		Assert.assertTrue(stripped > 10000);
+	}
+
+	private static String[] pages() throws IOException {
+		String[] pages = new String[PAGES.length + 2];
+		System.arraycopy(PAGES, 0, pages, 0, PAGES.length);
+		pages[PAGES.length] = new String(Files.readAllBytes(Paths.get("src/test/resources/test.html")), "UTF-8");
+		pages[PAGES.length + 1] = new String(Files.readAllBytes(Paths.get("src/test/resources/test2.html")), "UTF-8");
+		return pages;
+	}
+
+}
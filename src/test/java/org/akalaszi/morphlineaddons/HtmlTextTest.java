@@ -0,0 +1,59 @@
+package org.akalaszi.morphlineaddons;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HtmlTextTest {
+
+	private static final String[] PAGES = {
+			"<table><caption>cap</caption><thead><tr><th>h1</th><th>h2</th></tr></thead><tbody><tr><td>a<b>b</b></td>"
+					+ "<td>c</td></tr><tr><td><table><tr><td>n</td></tr></table></td></tr></tbody></table>",
+			"<ul><li>one<li>two<ul><li>x</li></ul></ul><select><option>o1<option>o2</select><dl><dt>t<dd>d</dl>",
+			"<p>a&nbsp;b &amp; c &lt;d&gt;<br>e<br/>f<wbr>g</p><p>h <!-- comment --> i</p>"
+					+ "<script>var x = '<p>';</script><style>p{}</style>",
+			"<div>x<custom-tag>y</custom-tag>z<foo>w</foo><svg><text>s</text></svg><math><mi>m</mi></math></div>",
+			"<form><fieldset><legend>L</legend><label>n<input value=v></label><textarea>  t\n x</textarea>"
+					+ "<button>b</button></fieldset></form>",
+			"<div class=meta><span>Added in: v1</span><span>Deprecated</span><a href=#>c</a><em>d</em>e<img alt=x>f<hr>g</div>",
+			"<body><h1>T</h1><p>a<p>b<blockquote>q</blockquote><noscript>ns</noscript><object>o</object></body>",
+			"<p>   lots   of\n\n whitespace \t here  </p><div>\n</div><div> </div><span> x </span>",
+			"<head><title> The  title </title><meta name=a content=b></head><body>b</body>",
+			"<a>nested <a>anchors</a></a><b><p>misnested</b></p><i>i<b>b</i>c</b>",
+			"<table>text in table<tr><td>x</td></tr></table><table><tfoot><tr><td>f</td></tr></tfoot></table>",
+			"<div><pre>\n\npre <span>text</span>\n  indented</pre></div><textarea>\nx</textarea><listing>l</listing>",
+			"<div class=post>Hello<!-- ad -->World</div><p>Price: 10<!--x-->0 USD</p><b>a<!--c-->b</b><i><!---->i</i>",
+			"<div>f<iframe>a&amp;b<i></iframe><noembed>&lt;n</noembed><xmp>x&amp;<b></xmp></div>",
+			"<table>x<tr><td>c</td></tr></table>" };
+
+	@Test
+	public void shouldGiveTheTextOfTheReparsedHtml() throws IOException {
+		for (String html : pages()) {
+			// GIVEN
+			Document doc = Jsoup.parse(html);
+
+			for (Element e : doc.getAllElements()) {
+				// WHEN
+				String text = HtmlText.text(e);
+
+				// THEN
+				Assert.assertEquals(e.outerHtml(), Jsoup.parse(e.toString()).text(), text);
+			}
+		}
+	}
+
+	private static String[] pages() throws IOException {
+		String[] pages = new String[PAGES.length + 2];
+		System.arraycopy(PAGES, 0, pages, 0, PAGES.length);
+		pages[PAGES.length] = new String(Files.readAllBytes(Paths.get("src/test/resources/test.html")), "UTF-8");
+		pages[PAGES.length + 1] = new String(Files.readAllBytes(Paths.get("src/test/resources/test2.html")), "UTF-8");
+		return pages;
+	}
+
+}
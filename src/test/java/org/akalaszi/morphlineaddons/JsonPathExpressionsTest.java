@@ -0,0 +1,80 @@
+package org.akalaszi.morphlineaddons;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.kitesdk.morphline.api.Record;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.jayway.jsonpath.JsonPath;
+
+public class JsonPathExpressionsTest {
+
+	@Test
+	public void shouldExtractLikeTheSlashPaths() throws IOException {
+		// GIVEN
+		JsonNode document = lithiumRecord();
+		Map<String, JsonPath> expressions = new LinkedHashMap<>();
+		expressions.put("boardId", JsonPath.compile("$.orig.board.id"));
+		expressions.put("labels", JsonPath.compile("$.labels[*].text"));
+		expressions.put("userContext", JsonPath.compile("$.orig.user_context"));
+		Map<String, List<String>> steps = new LinkedHashMap<>();
+		steps.put("boardId", JsonPaths.steps("/orig/board/id"));
+		steps.put("labels", JsonPaths.steps("/labels[]/text"));
+		steps.put("userContext", JsonPaths.steps("/orig/user_context"));
+
+		for (boolean flatten : new boolean[] { true, false }) {
+			// WHEN
+			Record jsonPath = new Record();
+			new JsonPathExpressions(expressions, flatten, 0).extract(document, jsonPath);
+			Record slash = new Record();
+			new JsonPaths(steps, flatten).extract(document, slash);
+
+			// THEN
+			Assert.assertEquals("flatten: " + flatten, slash.getFields(), jsonPath.getFields());
+		}
+	}
+
+	@Test
+	public void shouldSupportDeepScanAndFilters() throws IOException {
+		// GIVEN
+		Map<String, JsonPath> expressions = new LinkedHashMap<>();
+		expressions.put("userIds", JsonPath.compile("$..[?(@.type == 'user')].id"));
+		expressions.put("hrefs", JsonPath.compile("$..href"));
+
+		// WHEN
+		Record record = new Record();
+		new JsonPathExpressions(expressions, true, 0).extract(lithiumRecord(), record);
+
+		// THEN
+		Assert.assertEquals(Arrays.asList("231", "231"), record.get("userIds"));
+		Assert.assertEquals(6, record.get("hrefs").size());
+	}
+
+	@Test
+	public void shouldStopAfterMaxResults() throws IOException {
+		// GIVEN
+		Map<String, JsonPath> expressions = new LinkedHashMap<>();
+		expressions.put("hrefs", JsonPath.compile("$..href"));
+
+		// WHEN
+		Record record = new Record();
+		new JsonPathExpressions(expressions, true, 2).extract(lithiumRecord(), record);
+
+		// THEN
+		Assert.assertEquals(2, record.get("hrefs").size());
+	}
+
+	private static JsonNode lithiumRecord() throws IOException {
+		return new ObjectMapper().readTree(Files.readAllBytes(Paths.get("src/test/resources/lithium_record_noteaser.json")));
+	}
+
+}
@@ -0,0 +1,84 @@
+package org.akalaszi.morphlineaddons;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.kitesdk.morphline.api.Record;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class JsonPathsTest {
+
+	private static final String DOCUMENT = "{\"a\": {\"b\": [1, 2, {\"c\": \"x\"}], \"c\": null, \"d\": [[1, 2], [3]],"
+			+ " \"e\": [{\"f\": 1.5, \"g\": true}, {\"f\": 12345678901, \"g\": false}, {\"f\": 123456789012345678901234567890}],"
+			+ " \"h\": {\"i\": {\"j\": \"deep\"}, \"k\": []}}, \"skipped\": {\"big\": [1, 2, 3, {\"x\": \"y\"}]},"
+			+ " \"top\": \"\\u00e9t\\u00e9\"}";
+
+	@Test
+	public void shouldStreamTheSameValuesAsTheTree() throws IOException {
+		for (boolean flatten : new boolean[] { true, false }) {
+			// GIVEN
+			JsonPaths paths = new JsonPaths(stepMap("a", "/a", "b", "/a/b", "bElements", "/a/b[]", "bc", "/a/b[]/c",
+					"c", "/a/c", "d", "/a/d[]", "dElements", "/a/d[]/[]", "f", "/a/e[]/f", "g", "/a/e[]/g", "h",
+					"/a/h", "j", "/a/h/i/j", "k", "/a/h/k[]", "missing", "/a/missing/x", "wrongType", "/a/b/c",
+					"top", "/top", "root", "/"), flatten);
+
+			// WHEN
+			Record tree = extractTree(paths, DOCUMENT);
+			Record streaming = extractStreaming(paths, DOCUMENT);
+
+			// THEN
+			Assert.assertEquals("flatten: " + flatten, tree.getFields(), streaming.getFields());
+		}
+	}
+
+	@Test
+	public void shouldStreamTheLithiumRecordLikeTheTree() throws IOException {
+		// GIVEN
+		String document = new String(Files.readAllBytes(Paths.get("src/test/resources/lithium_record_noteaser.json")),
+				"UTF-8");
+		JsonPaths paths = new JsonPaths(stepMap("content", "/orig/body", "teaser", "/orig/teaser", "title",
+				"/orig/subject/", "id", "/orig/id", "view_href", "/orig/id", "boardId", "/orig/board/id", "depth", "/orig/depth", "popularity",
+				"/orig/popularity", "labels", "/labels[]/text", "userContext", "/orig/user_context"), true);
+
+		// WHEN
+		Record tree = extractTree(paths, document);
+		Record streaming = extractStreaming(paths, document);
+
+		// THEN
+		Assert.assertEquals(tree.getFields(), streaming.getFields());
+		Assert.assertEquals("DevBoard", streaming.getFirstValue("boardId"));
+		Assert.assertEquals(0, streaming.getFirstValue("depth"));
+		Assert.assertEquals("10000", streaming.getFirstValue("view_href"));
+	}
+
+	private static Map<String, List<String>> stepMap(String... fieldsAndPaths) {
+		Map<String, List<String>> stepMap = new LinkedHashMap<>();
+		for (int i = 0; i < fieldsAndPaths.length; i += 2) {
+			stepMap.put(fieldsAndPaths[i], JsonPaths.steps(fieldsAndPaths[i + 1]));
+		}
+		return stepMap;
+	}
+
+	private static Record extractTree(JsonPaths paths, String document) throws IOException {
+		Record record = new Record();
+		paths.extract(new ObjectMapper().readTree(document), record);
+		return record;
+	}
+
+	private static Record extractStreaming(JsonPaths paths, String document) throws IOException {
+		Record record = new Record();
+		try (JsonParser parser = new ObjectMapper().getFactory().createParser(document)) {
+			paths.extract(parser, record);
+		}
+		return record;
+	}
+
+}
@@ -0,0 +1,61 @@
+package org.akalaszi.morphlineaddons;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RegexShortcutTest {
+
+	private static final List<String> REGEXES = Arrays.asList("customer-tkb", "^customer-tkb$", ".*2$", "^foo.*",
+			"foo.*", ".*foo.*", ".*", "^.*$", "", "^", "$", "(?!(0)).*", "(?!0).*", "(?!0|1).*", "^.+(?<!html)$",
+			".*(?<!html)", "a|b|c", "(a|b|c)", "^(?:a|bb|)$", "^a|b$", "a\\.b", ".*\\.html", "a\\\\$", "\\$",
+			"\\$.*", "a b", "\u00e9t\u00e9.*", ".*\ud83d\ude00",
+			// not recognized, the regex decides
+			"a*", "ab+", ".", ".*?", ".*+x", "a.c", "\\d+", "[abc]", "(?i)foo", "(a)(b)", "(a|b)*", ".*(?=x)", "\\Qa\\E",
+			"(a|b).*", ".*\ud83d");
+
+	private static final List<String> VALUES = Arrays.asList("", "0", "1", "2", "12", "a", "b", "c", "bb", "ab",
+			"abc", "a.b", "axb", "a\\", "$", "$x", "x$", "a b", "foo", "foobar", "barfoo", "barfoobar", "fo",
+			"customer-tkb", "customer-tkbx", "xcustomer-tkb", "index.html", "index.htm", "html", "xhtml",
+			"topics/cm.html", "topics/cm.jpg", "02", "10", "foo\n", "\nfoo", "bar\rfoo", "foo\u2028bar",
+			"a\u0085", "0\n", "1\n", "2\n", "x\u2029html", "\n", "\r\n", "\u00e9t\u00e9", "\u00e9t\u00e9s",
+			"x\ud83d\ude00", "\ud83d\ude00", "\ud83d", "x\ud83d");
+
+	@Test
+	public void shouldMatchExactlyLikeStringMatches() {
+		for (String regex : REGEXES) {
+			// GIVEN
+			RegexShortcut shortcut = RegexShortcut.analyze(regex);
+
+			for (String value : VALUES) {
+				// WHEN
+				Boolean matches = shortcut == null ? null : shortcut.matches(value);
+
+				// THEN
+				if (matches != null) {
+					Assert.assertEquals("regex: " + regex + " " + shortcut + " value: " + value, value.matches(regex),
+							matches);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void shouldRecognizeTheCommonShapes() {
+		for (String regex : Arrays.asList("customer-tkb", ".*2$", "^foo.*", ".*foo.*", "(?!(0)).*", "^.+(?<!html)$",
+				"a|b|c", "(a|b)")) {
+			Assert.assertNotNull(regex, RegexShortcut.analyze(regex));
+		}
+	}
+
+	@Test
+	public void shouldLeaveEverythingElseToTheRegex() {
+		for (String regex : Arrays.asList("a*", ".", ".*?", "a.c", "\\d+", "[abc]", "(?i)foo", "(a|b)*", "\\Qa\\E",
+				".*\ud83d")) {
+			Assert.assertNull(regex, RegexShortcut.analyze(regex));
+		}
+	}
+
+}
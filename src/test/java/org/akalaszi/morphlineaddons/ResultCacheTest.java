@@ -0,0 +1,79 @@
+package org.akalaszi.morphlineaddons;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.kitesdk.morphline.api.MorphlineContext;
+
+import com.codahale.metrics.MetricRegistry;
+
+public class ResultCacheTest {
+
+	private static final List<List<String>> VALUES = Arrays.asList(Arrays.asList("a", "b\ud800"),
+			Collections.<String>emptyList(), Collections.singletonList("\u00e9t\u00e9"));
+
+	@Test
+	public void shouldExtractOncePerContentAndNamespace() throws Exception {
+		// GIVEN
+		MorphlineContext context = new MorphlineContext.Builder().build();
+		MetricRegistry metrics = context.getMetricRegistry();
+		ResultCache cache = ResultCache.of(context);
+
+		// WHEN
+		List<List<String>> first = cache.get(ResultCache.key("title", "<title>t</title>"), () -> VALUES);
+		List<List<String>> second = cache.get(ResultCache.key("title", "<title>t</title>"), () -> null);
+		List<List<String>> other = cache.get(ResultCache.key("meta", "<title>t</title>"),
+				() -> Collections.singletonList(Collections.singletonList("meta")));
+
+		// THEN
+		Assert.assertEquals(VALUES, first);
+		Assert.assertEquals(VALUES, second);
+		Assert.assertEquals("meta", other.get(0).get(0));
+		Assert.assertSame(cache, ResultCache.of(context));
+		Assert.assertEquals(2, metrics.meter("resultCache.misses").getCount());
+		Assert.assertEquals(1, metrics.meter("resultCache.hits").getCount());
+		Assert.assertEquals(1.0 / 3, (Double) metrics.getGauges().get("resultCache.hitRatio").getValue(), 1e-9);
+	}
+
+	@Test
+	public void shouldKeepValuesOffHeap() throws Exception {
+		// GIVEN
+		ResultCache cache = ResultCache.create(new MetricRegistry(), 1 << 20, true);
+
+		// WHEN
+		cache.get(ResultCache.key("", new byte[] { 1, 2 }), () -> VALUES);
+		List<List<String>> cached = cache.get(ResultCache.key("", new byte[] { 1, 2 }), () -> null);
+		cached.get(0).add("changed");
+
+		// THEN
+		Assert.assertEquals(VALUES, cache.get(ResultCache.key("", new byte[] { 1, 2 }), () -> null));
+	}
+
+	@Test
+	public void shouldEvictByWeight() throws Exception {
+		// GIVEN
+		MetricRegistry metrics = new MetricRegistry();
+		ResultCache cache = ResultCache.create(metrics, 10000, false);
+		List<List<String>> large = Collections.singletonList(Collections.singletonList(new String(new char[1000])));
+
+		// WHEN
+		for (int i = 0; i < 100; i++) {
+			cache.get(ResultCache.key("", "page" + i), () -> large);
+		}
+
+		// THEN
+		Assert.assertTrue(metrics.meter("resultCache.evictions").getCount() >= 90);
+	}
+
+	@Test
+	public void shouldTellStringsFromBytes() {
+		Assert.assertEquals(ResultCache.key("a", "x"), ResultCache.key("a", "x"));
+		Assert.assertNotEquals(ResultCache.key("a", "x"), ResultCache.key("a", "x".getBytes()));
+		Assert.assertNotEquals(ResultCache.key("a", "x"), ResultCache.key("b", "x"));
+		Assert.assertNotEquals(ResultCache.key("a", "x"), ResultCache.key("a", "y"));
+	}
+
+}
@@ -0,0 +1,244 @@
+package org.akalaszi.morphlineaddons;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.kitesdk.morphline.api.MorphlineRuntimeException;
+import org.kitesdk.morphline.api.Record;
+import org.kitesdk.morphline.solr.RecordingSolrClient;
+import org.kitesdk.morphline.solr.SolrIndexer;
+
+public class SolrIndexerPoolTest {
+
+	private final Map<String, RecordingSolrClient> clients = new ConcurrentHashMap<>();
+	private final List<RecordingSolrClient> allClients = Collections.synchronizedList(new ArrayList<>());
+	private long now;
+
+	@Test
+	public void shouldEvictTheLeastRecentlyUsedCollection() {
+		// GIVEN
+		SolrIndexerPool pool = createPool(2, 0);
+		pool.send("a", document("1"), Collections.emptySet());
+		now++;
+		pool.send("b", document("2"), Collections.emptySet());
+		now++;
+		pool.obtain("a");
+		now++;
+
+		// WHEN
+		pool.obtain("c");
+
+		// THEN
+		Assert.assertEquals("[a, c]", openCollections(pool));
+		Assert.assertTrue(clients.get("b").closed);
+		Assert.assertEquals(Collections.singletonList("add [2]"), clients.get("b").requests);
+		Assert.assertFalse(clients.get("a").closed);
+	}
+
+	@Test
+	public void shouldEvictIdleCollections() {
+		// GIVEN
+		SolrIndexerPool pool = createPool(10, 1000);
+		pool.obtain("a");
+		now = 600;
+		pool.obtain("b");
+
+		// WHEN
+		now = 1200;
+		pool.obtain("b");
+
+		// THEN
+		Assert.assertEquals("[b]", openCollections(pool));
+		Assert.assertTrue(clients.get("a").closed);
+		Assert.assertFalse(clients.get("b").closed);
+	}
+
+	@Test
+	public void shouldReportAFailedEvictionAtTheNextCommit() {
+		// GIVEN
+		SolrIndexerPool pool = createPool(1, 0);
+		pool.send("a", document("1"), Collections.emptySet());
+		clients.get("a").failing = true;
+
+		// WHEN
+		now++;
+		pool.send("b", document("2"), Collections.emptySet()); // evicts a, does not fail
+
+		// THEN
+		try {
+			pool.throwFailures();
+			Assert.fail("the failed commit of a must be reported");
+		} catch (MorphlineRuntimeException e) {
+			Assert.assertNotNull(e.getCause());
+		}
+		pool.throwFailures(); // reported once
+		pool.obtain("a");
+	}
+
+	@Test
+	public void shouldReportAFailedEvictionAtTheNextRecordOfTheCollection() {
+		// GIVEN
+		SolrIndexerPool pool = createPool(1, 0);
+		pool.send("a", document("1"), Collections.emptySet());
+		clients.get("a").failing = true;
+		now++;
+		pool.send("b", document("2"), Collections.emptySet());
+
+		// WHEN
+		try {
+			pool.send("a", document("3"), Collections.emptySet());
+			Assert.fail("the failed commit of a must be reported");
+		} catch (MorphlineRuntimeException e) {
+			// THEN
+		}
+		pool.throwFailures(); // reported once
+		pool.send("a", document("3"), Collections.emptySet());
+	}
+
+	@Test
+	public void shouldNotLoseRecordsWhileEvictingConcurrently() throws Exception {
+		// GIVEN
+		SolrIndexerPool pool = new SolrIndexerPool(this::createIndexer, 2, 0);
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		AtomicInteger ids = new AtomicInteger();
+		List<Future<?>> futures = new ArrayList<>();
+
+		// WHEN
+		for (int t = 0; t < 8; t++) {
+			final int thread = t;
+			futures.add(executor.submit(() -> {
+				for (int i = 0; i < 2000; i++) {
+					pool.send("c" + (thread + i) % 6, document(String.valueOf(ids.incrementAndGet())),
+							Collections.emptySet());
+				}
+			}));
+		}
+		for (Future<?> future : futures) {
+			future.get();
+		}
+		executor.shutdown();
+		pool.forEach((k, v) -> {
+			v.commitTransaction();
+			v.shutdown();
+		});
+		pool.throwFailures();
+
+		// THEN
+		int added = 0;
+		for (RecordingSolrClient client : allClients) {
+			Assert.assertTrue(client.closed);
+			added += client.addedDocuments();
+		}
+		Assert.assertEquals(16000, added);
+	}
+
+	@Test
+	public void shouldCommitTheCollectionsInParallel() {
+		// GIVEN
+		SolrIndexerPool pool = createPool(10, 0);
+		for (String collection : Arrays.asList("a", "b", "c", "d")) {
+			pool.send(collection, document("1"), Collections.emptySet());
+			clients.get(collection).delayMillis = 500;
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+
+		// WHEN
+		long start = System.nanoTime();
+		pool.forEachInParallel("COMMIT_TRANSACTION", SolrIndexer::commitTransaction, executor, 0);
+		long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+		// THEN
+		Assert.assertTrue("took " + millis + " ms", millis < 1500);
+		for (RecordingSolrClient client : clients.values()) {
+			Assert.assertEquals(Collections.singletonList("add [1]"), client.requests);
+		}
+		executor.shutdown();
+	}
+
+	@Test
+	public void shouldReportEveryFailedCollectionAndCommitTheOthers() {
+		// GIVEN
+		SolrIndexerPool pool = createPool(10, 0);
+		for (String collection : Arrays.asList("a", "b", "c")) {
+			pool.send(collection, document("1"), Collections.emptySet());
+		}
+		clients.get("a").failing = true;
+		clients.get("c").failing = true;
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+
+		// WHEN
+		try {
+			pool.forEachInParallel("COMMIT_TRANSACTION", SolrIndexer::commitTransaction, executor, 0);
+			Assert.fail("the commits of a and c must be reported");
+		} catch (MorphlineRuntimeException e) {
+			// THEN
+			Assert.assertTrue(e.getMessage(), e.getMessage().endsWith("[a, c]"));
+			Assert.assertEquals(1, e.getSuppressed().length);
+		}
+		Assert.assertEquals(Collections.singletonList("add [1]"), clients.get("b").requests);
+		executor.shutdown();
+	}
+
+	@Test
+	public void shouldNotInterruptAShutdownThatTimedOut() throws Exception {
+		// GIVEN
+		SolrIndexerPool pool = createPool(10, 0);
+		pool.send("fast", document("1"), Collections.emptySet());
+		pool.send("slow", document("2"), Collections.emptySet());
+		clients.get("slow").delayMillis = 1000;
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+
+		// WHEN
+		try {
+			pool.forEachInParallel("SHUTDOWN", SolrIndexer::shutdown, executor, 100);
+			Assert.fail("the shutdown of slow must time out");
+		} catch (MorphlineRuntimeException e) {
+			// THEN
+			Assert.assertTrue(e.getMessage(), e.getMessage().endsWith("[slow]"));
+			Assert.assertTrue(e.getCause() instanceof TimeoutException);
+		}
+		Assert.assertTrue(clients.get("fast").closed);
+		executor.shutdown();
+		Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+		Assert.assertFalse(clients.get("slow").interrupted);
+		Assert.assertEquals(Collections.singletonList("add [2]"), clients.get("slow").requests);
+		Assert.assertTrue(clients.get("slow").closed);
+	}
+
+	private SolrIndexerPool createPool(int maxOpenCollections, long idleTimeoutMillis) {
+		return new SolrIndexerPool(this::createIndexer, maxOpenCollections, idleTimeoutMillis, () -> now);
+	}
+
+	private SolrIndexer createIndexer(String collection) {
+		RecordingSolrClient client = new RecordingSolrClient();
+		clients.put(collection, client);
+		allClients.add(client);
+		return client.newIndexer("", null);
+	}
+
+	private static String openCollections(SolrIndexerPool pool) {
+		Map<String, SolrIndexer> open = new TreeMap<>();
+		pool.forEach(open::put);
+		return open.keySet().toString();
+	}
+
+	private static Record document(String id) {
+		Record record = new Record();
+		record.put("id", id);
+		return record;
+	}
+
+}
@@ -0,0 +1,99 @@
+package org.kitesdk.morphline.solr;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AdaptiveRateLimiterTest {
+
+	private static final long INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(1000);
+	private static final long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+	private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(200);
+
+	private long now;
+
+	@Test
+	public void shouldRaiseTheRateWhileUnderTheTarget() {
+		// GIVEN
+		AdaptiveRateLimiter limiter = createLimiter();
+
+		// WHEN
+		for (int i = 0; i < 100; i++) {
+			nextInterval(limiter, FAST);
+		}
+
+		// THEN
+		Assert.assertEquals(1000, limiter.getRate(), 0.001);
+	}
+
+	@Test
+	public void shouldHalveTheRateOverTheTarget() {
+		// GIVEN
+		AdaptiveRateLimiter limiter = createLimiter();
+		for (int i = 0; i < 5; i++) {
+			nextInterval(limiter, FAST);
+		}
+		Assert.assertEquals(510, limiter.getRate(), 0.001);
+
+		// WHEN
+		nextInterval(limiter, SLOW);
+
+		// THEN
+		Assert.assertEquals(255, limiter.getRate(), 0.001);
+	}
+
+	@Test
+	public void shouldBackOffOnRetries() {
+		// GIVEN
+		AdaptiveRateLimiter limiter = createLimiter();
+		nextInterval(limiter, FAST);
+		nextInterval(limiter, FAST);
+
+		// WHEN
+		limiter.onRetry();
+		nextInterval(limiter, FAST);
+
+		// THEN
+		Assert.assertEquals(105, limiter.getRate(), 0.001);
+	}
+
+	@Test
+	public void shouldHoldTheRateOnRisingLatency() {
+		// GIVEN
+		AdaptiveRateLimiter limiter = createLimiter();
+		nextInterval(limiter, FAST);
+
+		// WHEN
+		nextInterval(limiter, 2 * FAST);
+
+		// THEN
+		Assert.assertEquals(110, limiter.getRate(), 0.001);
+	}
+
+	@Test
+	public void shouldNotGoBelowTheMinimum() {
+		// GIVEN
+		AdaptiveRateLimiter limiter = createLimiter();
+
+		// WHEN
+		for (int i = 0; i < 10; i++) {
+			nextInterval(limiter, SLOW);
+		}
+
+		// THEN
+		Assert.assertEquals(10, limiter.getRate(), 0.001);
+	}
+
+	private AdaptiveRateLimiter createLimiter() {
+		AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(RateLimiter.create(1), 10, 1000, 100, 0.5, 50, 1000);
+		now = System.nanoTime();
+		return limiter;
+	}
+
+	private void nextInterval(AdaptiveRateLimiter limiter, long latency) {
+		now += INTERVAL_NANOS;
+		limiter.onLatency(latency, now);
+	}
+
+}
@@ -0,0 +1,150 @@
+package org.kitesdk.morphline.solr;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.kitesdk.morphline.api.MorphlineRuntimeException;
+
+public class AsyncWriteQueueTest {
+
+	private final List<Object> applied = Collections.synchronizedList(new ArrayList<>());
+	private final List<Runnable> drains = new ArrayList<>();
+
+	@Test
+	public void shouldApplyEveryOperationBeforeTheBarrier() {
+		// GIVEN
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		AsyncWriteQueue queue = new AsyncWriteQueue(10, false, executor, applied::addAll);
+
+		// WHEN
+		for (int i = 0; i < 1000; i++) {
+			queue.enqueue(i);
+		}
+		queue.awaitCompletion();
+
+		// THEN
+		Assert.assertEquals(1000, applied.size());
+		for (int i = 0; i < 1000; i++) {
+			Assert.assertEquals(i, applied.get(i));
+		}
+		executor.shutdown();
+	}
+
+	@Test
+	public void shouldNotPassTheBarrierBeforeTheOwnOperationsOfTheThread() throws Exception {
+		// GIVEN
+		ExecutorService writer = Executors.newSingleThreadExecutor();
+		Set<Object> written = ConcurrentHashMap.newKeySet();
+		AsyncWriteQueue queue = new AsyncWriteQueue(4, false, writer, written::addAll); // producers wait on put()
+		ExecutorService producers = Executors.newFixedThreadPool(16);
+		AtomicInteger ids = new AtomicInteger();
+		AtomicInteger early = new AtomicInteger();
+		List<Future<?>> futures = new ArrayList<>();
+
+		// WHEN
+		for (int t = 0; t < 16; t++) {
+			futures.add(producers.submit(() -> {
+				for (int i = 0; i < 10000; i++) {
+					Integer id = ids.incrementAndGet();
+					queue.enqueue(id);
+					queue.awaitCompletion();
+					if (!written.contains(id)) {
+						early.incrementAndGet();
+					}
+				}
+			}));
+		}
+		for (Future<?> future : futures) {
+			future.get();
+		}
+
+		// THEN
+		Assert.assertEquals(0, early.get());
+		producers.shutdown();
+		writer.shutdown();
+	}
+
+	@Test
+	public void shouldFailRightAwayWhenFull() {
+		// GIVEN
+		AsyncWriteQueue queue = new AsyncWriteQueue(1, true, drains::add, applied::addAll);
+		queue.enqueue("a");
+
+		// WHEN
+		try {
+			queue.enqueue("b");
+			Assert.fail("the queue is full");
+		} catch (MorphlineRuntimeException e) {
+			// THEN
+			Assert.assertEquals("Solr write queue is full", e.getMessage());
+		}
+		runDrains();
+		queue.awaitCompletion(); // b is not waited for
+		Assert.assertEquals(Collections.singletonList("a"), applied);
+	}
+
+	@Test
+	public void shouldDiscardTheOperationsNotAppliedYet() {
+		// GIVEN
+		AsyncWriteQueue queue = new AsyncWriteQueue(10, false, drains::add, applied::addAll);
+		queue.enqueue("a");
+		queue.enqueue("b");
+
+		// WHEN
+		queue.discard();
+		runDrains();
+		queue.enqueue("c");
+		runDrains();
+		queue.awaitCompletion();
+
+		// THEN
+		Assert.assertEquals(Collections.singletonList("c"), applied);
+	}
+
+	@Test
+	public void shouldReportAFailureUntilDiscarded() {
+		// GIVEN
+		AsyncWriteQueue queue = new AsyncWriteQueue(10, false, drains::add, operations -> {
+			throw new IllegalStateException("write failed");
+		});
+		queue.enqueue("a");
+		runDrains();
+
+		// WHEN
+		MorphlineRuntimeException atEnqueue = null;
+		MorphlineRuntimeException atBarrier = null;
+		try {
+			queue.enqueue("b");
+		} catch (MorphlineRuntimeException e) {
+			atEnqueue = e;
+		}
+		try {
+			queue.awaitCompletion();
+		} catch (MorphlineRuntimeException e) {
+			atBarrier = e;
+		}
+		queue.discard();
+
+		// THEN
+		Assert.assertEquals("write failed", atEnqueue.getCause().getMessage());
+		Assert.assertEquals("write failed", atBarrier.getCause().getMessage());
+		queue.awaitCompletion();
+		queue.enqueue("c");
+	}
+
+	private void runDrains() {
+		while (!drains.isEmpty()) {
+			drains.remove(0).run();
+		}
+	}
+
+}
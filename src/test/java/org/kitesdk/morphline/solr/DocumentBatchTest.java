@@ -0,0 +1,143 @@
+package org.kitesdk.morphline.solr;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DocumentBatchTest {
+
+	@Test
+	public void shouldBeFullAtMaxDocsOperations() {
+		// GIVEN
+		DocumentBatch batch = new DocumentBatch(3, 0, 0, "id");
+
+		// WHEN
+		batch.add(doc("1", "a"));
+		batch.deleteById("2");
+		boolean fullBefore = batch.isFull();
+		batch.deleteByQuery("type:x");
+
+		// THEN
+		Assert.assertFalse(fullBefore);
+		Assert.assertTrue(batch.isFull());
+	}
+
+	@Test
+	public void shouldBeFullAtMaxBytes() {
+		// GIVEN
+		DocumentBatch batch = new DocumentBatch(0, 100, 0, "id");
+
+		// WHEN
+		batch.add(doc("1", repeat('a', 50)));
+		boolean fullBefore = batch.isFull();
+		batch.add(doc("2", repeat('b', 50)));
+
+		// THEN
+		Assert.assertFalse(fullBefore);
+		Assert.assertTrue(batch.isFull());
+	}
+
+	@Test
+	public void shouldLingerAfterMaxLingerMillis() {
+		// GIVEN
+		DocumentBatch batch = new DocumentBatch(0, 0, 1000, "id");
+		long start = System.currentTimeMillis();
+		boolean emptyLingering = batch.isLingering(start + 2000);
+
+		// WHEN
+		batch.add(doc("1", "a"));
+
+		// THEN
+		Assert.assertFalse(emptyLingering);
+		Assert.assertFalse(batch.isLingering(start - 1));
+		Assert.assertTrue(batch.isLingering(System.currentTimeMillis() + 1000));
+	}
+
+	@Test
+	public void shouldStartLingeringAgainAfterClear() {
+		// GIVEN
+		DocumentBatch batch = new DocumentBatch(0, 0, 1000, "id");
+		batch.add(doc("1", "a"));
+
+		// WHEN
+		batch.clear();
+
+		// THEN
+		Assert.assertTrue(batch.isEmpty());
+		Assert.assertFalse(batch.isLingering(System.currentTimeMillis() + 1000));
+	}
+
+	@Test
+	public void shouldDropThePendingAddsOfADeletedId() {
+		// GIVEN
+		DocumentBatch batch = new DocumentBatch(0, 0, 0, "id");
+		batch.add(doc("1", "a"));
+		batch.add(doc("2", "b"));
+		batch.add(doc("1", "c"));
+
+		// WHEN
+		batch.deleteById("1");
+
+		// THEN
+		Assert.assertEquals(1, batch.docs().size());
+		Assert.assertEquals("2", batch.docs().get(0).getFieldValue("id"));
+		Assert.assertEquals(Collections.singletonList("1"), Arrays.asList(batch.deleteIds().toArray()));
+	}
+
+	@Test
+	public void shouldNotCountTheBytesOfDroppedAdds() {
+		// GIVEN
+		DocumentBatch batch = new DocumentBatch(0, 100, 0, "id");
+		batch.add(doc("1", repeat('a', 90)));
+
+		// WHEN
+		batch.deleteById("1");
+		batch.add(doc("2", repeat('b', 50)));
+
+		// THEN
+		Assert.assertFalse(batch.isFull());
+	}
+
+	@Test
+	public void shouldFlushBeforeAnAddOfADeletedId() {
+		// GIVEN
+		DocumentBatch batch = new DocumentBatch(0, 0, 0, "id");
+
+		// WHEN
+		batch.deleteById("1");
+
+		// THEN
+		Assert.assertTrue(batch.mustFlushBefore(doc("1", "a")));
+		Assert.assertFalse(batch.mustFlushBefore(doc("2", "a")));
+	}
+
+	@Test
+	public void shouldFlushBeforeAnyAddAfterADeleteByQuery() {
+		// GIVEN
+		DocumentBatch batch = new DocumentBatch(0, 0, 0, "id");
+
+		// WHEN
+		batch.deleteByQuery("type:x");
+
+		// THEN
+		Assert.assertTrue(batch.mustFlushBefore(doc("2", "a")));
+		Assert.assertTrue(batch.mustFlushBefore(new SolrInputDocument()));
+	}
+
+	private static SolrInputDocument doc(String id, String text) {
+		SolrInputDocument doc = new SolrInputDocument();
+		doc.setField("id", id);
+		doc.setField("text", text);
+		return doc;
+	}
+
+	private static String repeat(char c, int count) {
+		char[] chars = new char[count];
+		Arrays.fill(chars, c);
+		return new String(chars);
+	}
+
+}
@@ -0,0 +1,87 @@
+package org.kitesdk.morphline.solr;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.util.NamedList;
+import org.kitesdk.morphline.api.MorphlineContext;
+
+import com.typesafe.config.ConfigFactory;
+
+/**
+ * A SolrClient keeping the update requests it gets, one line per operation,
+ * for the tests of SolrIndexer and of the commands using it.
+ */
+public final class RecordingSolrClient extends SolrClient {
+	private static final long serialVersionUID = 1L;
+
+	public final List<String> requests = Collections.synchronizedList(new ArrayList<>());
+	public volatile boolean failing;
+	public volatile long delayMillis;
+	public volatile boolean interrupted;
+	public volatile boolean closed;
+
+	/**
+	 * An indexer writing to this client through the loader of the
+	 * solrLocator, with batchSize 1000.
+	 */
+	public SolrIndexer newIndexer(String config, Executor asyncExecutor) {
+		return new SolrIndexer(ConfigFactory.parseString(config), new MorphlineContext.Builder().build(), "collection1",
+				asyncExecutor, (configs, metrics) -> new SolrServerDocumentLoader(this, 1000));
+	}
+
+	/**
+	 * The number of documents added so far.
+	 */
+	public int addedDocuments() {
+		synchronized (requests) {
+			return (int) requests.stream().filter(r -> r.startsWith("add ")).mapToLong(r -> r.split(",").length).sum();
+		}
+	}
+
+	@Override
+	public NamedList<Object> request(@SuppressWarnings("rawtypes") SolrRequest request, String collection)
+			throws IOException {
+		if (failing) {
+			throw new IOException("failing on purpose");
+		}
+		if (delayMillis > 0) {
+			try {
+				Thread.sleep(delayMillis);
+			} catch (InterruptedException e) {
+				interrupted = true;
+				throw new IOException(e);
+			}
+		}
+		UpdateRequest update = (UpdateRequest) request;
+		if (update.getDocuments() != null) {
+			List<Object> ids = new ArrayList<>();
+			for (SolrInputDocument doc : update.getDocuments()) {
+				ids.add(doc.getFieldValue("id"));
+			}
+			requests.add("add " + ids);
+		}
+		if (update.getDeleteById() != null) {
+			requests.add("deleteById " + update.getDeleteById());
+		}
+		if (update.getDeleteQuery() != null) {
+			for (String query : update.getDeleteQuery()) {
+				requests.add("deleteByQuery " + query);
+			}
+		}
+		return new NamedList<>();
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+	}
+
+}
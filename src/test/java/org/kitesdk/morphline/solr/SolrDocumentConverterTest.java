@@ -0,0 +1,133 @@
+package org.kitesdk.morphline.solr;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.SolrInputField;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+import org.kitesdk.morphline.api.Record;
+
+public class SolrDocumentConverterTest {
+
+	private static final String TARGET_COLLECTION = "targetCollection";
+	private static final Set<String> EXCLUDED_FIELDS = Collections.singleton(TARGET_COLLECTION);
+	private static final int ROUNDS = 20000;
+
+	@Test
+	public void shouldSkipExcludedFieldsWithoutTouchingTheRecord() {
+		// GIVEN
+		Record record = createRecord();
+
+		// WHEN
+		SolrInputDocument doc = new SolrDocumentConverter().convert(record, EXCLUDED_FIELDS);
+
+		// THEN
+		Assert.assertNull(doc.getField(TARGET_COLLECTION));
+		Assert.assertEquals("collection1", record.getFirstValue(TARGET_COLLECTION));
+		Assert.assertEquals(asString(legacyConvert(record)), asString(doc));
+	}
+
+	@Test
+	public void shouldNotChangeTheDocumentWithTheRecord() {
+		// GIVEN
+		Record record = createRecord();
+		SolrInputDocument doc = new SolrDocumentConverter().convert(record, EXCLUDED_FIELDS);
+		String converted = asString(doc);
+
+		// WHEN
+		record.put("tags", "d");
+		record.replaceValues("field_0", "changed");
+		record.removeAll("id");
+
+		// THEN
+		Assert.assertEquals(converted, asString(doc));
+		Assert.assertEquals(Arrays.asList("a", "b", "c"), doc.getFieldValues("tags"));
+	}
+
+	@Test
+	public void shouldAllocateLessThanHalfOfCopyAndConvert() {
+		com.sun.management.ThreadMXBean threads = threadMXBean();
+		Assume.assumeTrue(threads != null && threads.isThreadAllocatedMemorySupported());
+
+		// GIVEN
+		Record record = createRecord();
+		SolrDocumentConverter converter = new SolrDocumentConverter();
+		for (int i = 0; i < ROUNDS; i++) { // warm up
+			legacyCopyAndConvert(record);
+			converter.convert(record, EXCLUDED_FIELDS);
+		}
+
+		// WHEN
+		long thread = Thread.currentThread().getId();
+		long start = threads.getThreadAllocatedBytes(thread);
+		for (int i = 0; i < ROUNDS; i++) {
+			legacyCopyAndConvert(record);
+		}
+		long legacy = threads.getThreadAllocatedBytes(thread) - start;
+
+		start = threads.getThreadAllocatedBytes(thread);
+		for (int i = 0; i < ROUNDS; i++) {
+			converter.convert(record, EXCLUDED_FIELDS);
+		}
+		long current = threads.getThreadAllocatedBytes(thread) - start;
+
+		// THEN
+		Assert.assertTrue("legacy: " + legacy + " current: " + current, current * 2 < legacy);
+	}
+
+	private static com.sun.management.ThreadMXBean threadMXBean() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		return bean instanceof com.sun.management.ThreadMXBean ? (com.sun.management.ThreadMXBean) bean : null;
+	}
+
+	private static Record createRecord() {
+		Record record = new Record();
+		record.put(TARGET_COLLECTION, "collection1");
+		record.put("id", "doc-1");
+		for (int i = 0; i < 20; i++) {
+			record.put("field_" + i, "value " + i);
+		}
+		record.put("tags", "a");
+		record.put("tags", "b");
+		record.put("tags", "c");
+		return record;
+	}
+
+	/**
+	 * What dispatchingLoadSolr used to do for every record.
+	 */
+	private static SolrInputDocument legacyCopyAndConvert(Record record) {
+		Record copy = record.copy();
+		copy.removeAll(TARGET_COLLECTION);
+		return legacyConvert(copy);
+	}
+
+	private static SolrInputDocument legacyConvert(Record record) {
+		Map<String, Collection<Object>> map = record.getFields().asMap();
+		SolrInputDocument doc = new SolrInputDocument(new HashMap<String, SolrInputField>(2 * map.size()));
+		for (Map.Entry<String, Collection<Object>> entry : map.entrySet()) {
+			if (!TARGET_COLLECTION.equals(entry.getKey())) {
+				doc.setField(entry.getKey(), entry.getValue());
+			}
+		}
+		return doc;
+	}
+
+	private static String asString(SolrInputDocument doc) {
+		Map<String, Object> values = new TreeMap<>();
+		for (SolrInputField field : doc) {
+			values.put(field.getName(), field.getValues().toString());
+		}
+		return values.toString();
+	}
+
+}
@@ -0,0 +1,120 @@
+package org.kitesdk.morphline.solr;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.kitesdk.morphline.api.Record;
+
+public class SolrIndexerTest {
+
+	private static final String BATCHING = "maxBatchSize : 100";
+
+	@Test
+	public void shouldSendTheIdsOfABatchInOneRequest() {
+		// GIVEN
+		RecordingSolrClient client = new RecordingSolrClient();
+		SolrIndexer indexer = createIndexer(BATCHING, client);
+
+		// WHEN
+		indexer.sendToSolr(deleteById("a", "b"));
+		indexer.sendToSolr(deleteById("c"));
+		indexer.commitTransaction();
+
+		// THEN
+		Assert.assertEquals(Arrays.asList("deleteById [a, b, c]"), client.requests);
+	}
+
+	@Test
+	public void shouldSendTheIdsOfARecordInOneRequestWithoutBatching() {
+		// GIVEN
+		RecordingSolrClient client = new RecordingSolrClient();
+		SolrIndexer indexer = createIndexer("", client);
+
+		// WHEN
+		indexer.sendToSolr(deleteById("a", "b"));
+
+		// THEN
+		Assert.assertEquals(Arrays.asList("deleteById [a, b]"), client.requests);
+	}
+
+	@Test
+	public void shouldOrOnlyPlainQueries() {
+		// GIVEN
+		RecordingSolrClient client = new RecordingSolrClient();
+		SolrIndexer indexer = createIndexer(BATCHING, client);
+
+		// WHEN
+		for (String query : Arrays.asList("a:1", "{!join from=p to=c}x:1", "-type:x", " NOT type:y", "!type:z",
+				"b:2")) {
+			indexer.sendToSolr(deleteByQuery(query));
+		}
+		indexer.commitTransaction();
+
+		// THEN
+		Assert.assertEquals(Arrays.asList("deleteByQuery {!join from=p to=c}x:1", "deleteByQuery -type:x",
+				"deleteByQuery  NOT type:y", "deleteByQuery !type:z", "deleteByQuery (a:1) OR (b:2)"),
+				client.requests);
+	}
+
+	@Test
+	public void shouldDropThePendingAddsOfADeletedId() {
+		// GIVEN
+		RecordingSolrClient client = new RecordingSolrClient();
+		SolrIndexer indexer = createIndexer(BATCHING, client);
+
+		// WHEN
+		indexer.sendToSolr(document("1"));
+		indexer.sendToSolr(document("2"));
+		indexer.sendToSolr(deleteById("1"));
+		indexer.commitTransaction();
+
+		// THEN
+		Assert.assertEquals(Arrays.asList("add [2]", "deleteById [1]"), client.requests);
+	}
+
+	@Test
+	public void shouldNotSendAnAddBeforeAPrecedingDelete() {
+		// GIVEN
+		RecordingSolrClient client = new RecordingSolrClient();
+		SolrIndexer indexer = createIndexer(BATCHING, client);
+
+		// WHEN
+		indexer.sendToSolr(document("1"));
+		indexer.sendToSolr(deleteById("2"));
+		indexer.sendToSolr(document("2"));
+		indexer.sendToSolr(deleteByQuery("type:x"));
+		indexer.sendToSolr(document("3"));
+		indexer.commitTransaction();
+
+		// THEN
+		Assert.assertEquals(Arrays.asList("add [1]", "deleteById [2]", "add [2]", "deleteByQuery type:x", "add [3]"),
+				client.requests);
+	}
+
+	private static SolrIndexer createIndexer(String config, RecordingSolrClient client) {
+		return client.newIndexer(config, null);
+	}
+
+	private static Record document(String id) {
+		Record record = new Record();
+		record.put("id", id);
+		return record;
+	}
+
+	private static Record deleteById(String... ids) {
+		Record record = new Record();
+		for (String id : ids) {
+			record.put(LoadSolrBuilder.LOAD_SOLR_DELETE_BY_ID, id);
+		}
+		return record;
+	}
+
+	private static Record deleteByQuery(String query) {
+		Record record = new Record();
+		record.put(LoadSolrBuilder.LOAD_SOLR_DELETE_BY_QUERY, query);
+		return record;
+	}
+
+}